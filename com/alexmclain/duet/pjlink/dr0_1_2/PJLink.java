@@ -1,17 +1,17 @@
 package com.alexmclain.duet.pjlink.dr0_1_2;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.math.BigInteger;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.HashMap;
+import java.util.Random;
 
 /**
  * PJLink is a class for Java devices to interface with video projectors
@@ -23,7 +23,12 @@ import java.util.TimerTask;
  * http://pjlink.jbmia.or.jp/english/data/PJLink%20Specifications100.pdf</a>
  * <p>
  * This class queues requests to the projector and only keeps the network
- * socket open for the duration of each request/response cycle.
+ * socket open for the duration of each request/response cycle, unless
+ * a persistent session is enabled with <code>setPersistentSession()</code>.
+ * Requests are sent by one of two I/O engines, see <code>setIOEngine()</code>.
+ * <p>
+ * Commands return a <code>PJLinkCompletion</code>, which resolves with
+ * the projector's answer to them.
  */
 public class PJLink {
     //   Packed error bits:
@@ -117,6 +122,20 @@ public class PJLink {
     public static final int MUTE_AUDIO_VIDEO    = 31;
     public static final int MUTE_OFF            = 30;
     
+    // Circuit breaker states.
+    public static final int CIRCUIT_CLOSED      = 0;    // Commands are sent normally.
+    public static final int CIRCUIT_OPEN        = 1;    // Projector unreachable, commands are rejected.
+    public static final int CIRCUIT_HALF_OPEN   = 2;    // A probe command is testing the connection.
+    
+    // What the command queue does with a command when it is full.
+    public static final int QUEUE_OVERFLOW_DROP_OLDEST_POLL = 0;   // Make room by dropping the oldest poll.
+    public static final int QUEUE_OVERFLOW_REJECT           = 1;   // Reject the new command.
+    public static final int QUEUE_OVERFLOW_COALESCE         = 2;   // Replace a waiting command that sets the same thing.
+    
+    // I/O engines.
+    public static final int IO_ENGINE_BLOCKING  = 0;    // Socket and reader thread per connection.
+    public static final int IO_ENGINE_SELECTOR  = 1;    // Shared non-blocking selector thread.
+    
     ////////////////////////////////////////////////////////////
     
     // PJLink connection.
@@ -126,9 +145,29 @@ public class PJLink {
     
     private PJLinkSocket _pjlinkSocket = new PJLinkSocket();
     private PJLinkQueue _pjlinkQueue = new PJLinkQueue();
-    private PJLinkRefreshTimer _rft = new PJLinkRefreshTimer();
-    
-    private ArrayList _pjlinkListeners = new ArrayList();
+    private PJLinkSelectorSession _selectorSession = new PJLinkSelectorSession();
+    private PJLinkResponseHandler _responseHandler = new PJLinkResponseHandler();
+    private PJLinkEventDispatcher _eventDispatcher = new PJLinkEventDispatcher();
+    private PJLinkCircuitBreaker _circuitBreaker = new PJLinkCircuitBreaker();
+    private PJLinkSelectorEngine _selectorEngine;
+    
+    // Replaced, never modified, so events can be delivered from any
+    // thread without a lock while listeners are added and removed.
+    private volatile PJLinkListener[] _pjlinkListeners = new PJLinkListener[0];
+    private Object _listenerLock = new Object();
+    
+    // Events raised while a line is applied, delivered once the lock is
+    // released. Guarded by this instance's lock.
+    private ArrayList _heldEvents = new ArrayList();
+    
+    // Last state value delivered to the listeners, by event type.
+    // STATE_UNPUBLISHED forces the next value out even if it is unchanged.
+    private int[] _publishedState = {
+        STATE_UNPUBLISHED, STATE_UNPUBLISHED, STATE_UNPUBLISHED, STATE_UNPUBLISHED, STATE_UNPUBLISHED
+    };
+    
+    private MessageDigest _md5;
+    private Object _digestLock = new Object();
     
     // Device state.
     private int _powerState = POWER_OFF;
@@ -155,10 +194,94 @@ public class PJLink {
     int _filterError = 0;
     int _otherError  = 0;
     
+    // When the projector last reported each state, by event type, or 0 if it hasn't.
+    private long[] _confirmedTime = new long[5];
+    
+    // Replaced, never modified, each time a response is applied. Readers
+    // get a consistent view of the device state from a single read.
+    private volatile PJLinkState _snapshot = snapshot();  // Declared after the state it copies.
+    
     // Module settings.
     boolean _printDebug     = false;    // Print debug statements to the console.
     boolean _disablePolling = false;    // Disable polling of the projector state.
-    long _refreshInterval   = 5;        // Number of seconds between polling of the projector state.
+    
+    // Number of seconds between polls of the projector state, by power state.
+    long[] _refreshIntervals = {
+        15,     // POWER_OFF
+        5,      // POWER_ON
+        1,      // POWER_COOLING
+        1       // POWER_WARMING
+    };
+    
+    boolean _persistentSession = false; // Keep the socket open between commands.
+    int _ioEngine = IO_ENGINE_BLOCKING; // Engine that sends the queued commands.
+    boolean _alwaysNotify = false;      // Notify listeners of every response, not only changes.
+    boolean _asyncDispatch = false;     // Notify listeners on a dispatch thread, not the I/O thread.
+    boolean _notifications = false;     // Accept Class 2 status notifications.
+    
+    // Highest PJLink class the projector reported, 0 until it has.
+    int _projectorClass = 0;
+    
+    // Set once the instance is disposed of. Nothing is sent afterwards.
+    volatile boolean _disposed = false;
+    
+    // Set when the projector couldn't hold a session across commands.
+    boolean _connectPerCommandFallback = false;
+    
+    // Consecutive times a reused session was closed by the
+    // projector before it answered a command.
+    private int _sessionReuseFailures = 0;
+    
+    private static final byte[] HEX_DIGITS = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+    
+    // Milliseconds a command may take, from connecting to receiving the response.
+    private static final int COMMAND_TIMEOUT = 4000;
+    
+    // Milliseconds the blocking engine waits on its socket before giving up
+    // on its own, in case the command deadline fires late.
+    private static final int SOCKET_WAIT_LIMIT = COMMAND_TIMEOUT * 2;
+    
+    // Command queue priorities, most urgent first.
+    private static final int PRIORITY_CONTROL   = 0;    // Changes the projector's state.
+    private static final int PRIORITY_QUERY     = 1;    // Requested by the user or after a control command.
+    private static final int PRIORITY_POLL      = 2;    // Background polling.
+    private static final int PRIORITY_LANES     = 3;
+    
+    // Times a waiting lane can be passed over by more urgent lanes before it gets a turn.
+    private static final int LANE_STARVATION_LIMIT = 8;
+    
+    // Commands the queue holds by default.
+    private static final int DEFAULT_QUEUE_CAPACITY = 32;
+    
+    // Commands that can fail in a row before the circuit breaker opens.
+    private static final int BREAKER_FAILURE_THRESHOLD = 3;
+    
+    // Milliseconds before the first probe of an open circuit, and the
+    // most the wait can grow to as probes keep failing.
+    private static final int BREAKER_BASE_BACKOFF = 2000;
+    private static final int BREAKER_MAX_BACKOFF  = 60000;
+    
+    private static Random _jitter = new Random();
+    
+    // Seconds between the safety net polls of a projector that sends status notifications.
+    private static final int NOTIFICATION_POLL_INTERVAL = 60;
+    
+    // Milliseconds of fast polling after a control command.
+    private static final int CONTROL_FAST_POLL_TIME = 10000;
+    
+    // Events that can wait for an asynchronous dispatch before the oldest is dropped.
+    private static final int DISPATCH_QUEUE_CAPACITY = 64;
+    
+    // Marks a state value the listeners haven't been given.
+    private static final int STATE_UNPUBLISHED = -1;
+    
+    // Reused sessions that can fail in a row before falling back to connect-per-command.
+    private static final int SESSION_REUSE_MAX_FAILURES = 3;
+    
+    // Declared after the module settings so it starts with the default refresh interval.
+    private PJLinkRefreshTimer _rft = new PJLinkRefreshTimer();
     
     ////////////////////////////////////////////////////////////
     
@@ -189,23 +312,139 @@ public class PJLink {
         setPort(port);
     }
     
+    /**
+     * Stops polling, closes the connection and releases this instance's
+     * share of the resources used by every instance: its poll, its
+     * notification route and its selector session. Waiting commands
+     * are rejected, as is every command sent afterwards.
+     */
+    public void dispose() {
+        if (_disposed == true) return;
+        
+        _disposed = true;
+        _rft.cancel();
+        _circuitBreaker.reset();
+        setNotifications(false);
+        
+        _pjlinkQueue.clear();
+        _pjlinkQueue.engineChanged();   // Lets the runner thread exit.
+        _pjlinkSocket.closeSession();
+        _selectorSession.shutdown();
+        _eventDispatcher.stop();
+    }
+    
+    public boolean isDisposed() {
+        return _disposed;
+    }
+    
     /**
      * Adds a <code>PJLinkListener</code> to receive changes regarding the projector's state.
+     * The whole state is delivered again after the next poll, so the new
+     * listener doesn't miss values that were published before it was added.
      * @param listener
      */
     public void addListener(PJLinkListener listener) {
-        if (_pjlinkListeners.contains(listener) == true) return;
-        _pjlinkListeners.add(listener);
+        synchronized (_listenerLock) {
+            PJLinkListener[] listeners = _pjlinkListeners;
+            
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i] == listener) return;
+            }
+            
+            PJLinkListener[] newListeners = new PJLinkListener[listeners.length + 1];
+            System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+            newListeners[listeners.length] = listener;
+            _pjlinkListeners = newListeners;
+        }
+        
+        forgetPublishedState();
     }
     
     public void removeListener(PJLinkListener listener) {
-        _pjlinkListeners.remove(listener);
+        synchronized (_listenerLock) {
+            PJLinkListener[] listeners = _pjlinkListeners;
+            
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i] != listener) continue;
+                
+                PJLinkListener[] newListeners = new PJLinkListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, newListeners, 0, i);
+                System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+                _pjlinkListeners = newListeners;
+                return;
+            }
+        }
     }
     
     private void notifyListeners(PJLinkEvent event) {
-        Iterator i = _pjlinkListeners.iterator();
-        while (i.hasNext()) {
-            ((PJLinkListener) i.next()).deviceStateChanged(this, event);
+        event.setState(_snapshot);
+        
+        if (_asyncDispatch == true) {
+            // Never blocks or calls a listener, and keeps the events in order.
+            _eventDispatcher.dispatch(event);
+        }
+        else if (Thread.holdsLock(this) == true) {
+            // Raised by applyResponse(), which delivers it after the lock is released.
+            _heldEvents.add(event);
+        }
+        else {
+            deliverEvent(event);
+        }
+    }
+    
+    private void deliverEvent(PJLinkEvent event) {
+        // A listener added or removed meanwhile takes effect from the next event.
+        PJLinkListener[] listeners = _pjlinkListeners;
+        
+        for (int i = 0; i < listeners.length; i++) {
+            try {
+                listeners[i].deviceStateChanged(this, event);
+            }
+            catch (RuntimeException ex) {
+                // The caller is an I/O thread that must finish handling
+                // the response, and the other listeners still get the event.
+                System.out.println("PJLink listener failed: " + ex);
+            }
+        }
+    }
+    
+    /**
+     * Notifies the listeners of a state value, unless it is the value
+     * they were last given for that type of event and
+     * <code>_alwaysNotify</code> is off. The state snapshot is updated
+     * either way.
+     * @param eventType
+     * @param data
+     */
+    private void publishState(int eventType, int data) {
+        publishSnapshot();
+        
+        synchronized (_publishedState) {
+            if (_alwaysNotify == false && _publishedState[eventType] == data) return;
+            _publishedState[eventType] = data;
+        }
+        
+        notifyListeners(new PJLinkEvent(eventType, data));
+    }
+    
+    /**
+     * Notifies the listeners of an event that isn't a state value, like
+     * an error reply. Listeners apply it as they would a state value, so
+     * the next state value of the same type is always delivered.
+     * @param event
+     */
+    private void notifyTransient(PJLinkEvent event) {
+        forgetPublishedState(event.getEventType());
+        notifyListeners(event);
+    }
+    
+    private void forgetPublishedState() {
+        for (int i = 0; i < _publishedState.length; i++) forgetPublishedState(i);
+    }
+    
+    private void forgetPublishedState(int eventType) {
+        synchronized (_publishedState) {
+            _publishedState[eventType] = STATE_UNPUBLISHED;
         }
     }
     
@@ -217,16 +456,188 @@ public class PJLink {
         return _TCPPort;
     }
     
+    /*
+     * The state getters return what the projector last reported, or what
+     * it was last told to change to, without contacting it. Use
+     * getConfirmedTime() to see how old a state is, and refreshIfOlderThan()
+     * to update the states that are too old.
+     */
+    
     /**
      * @return Projector is on, off, warming, or cooling.
      */
     public int getPowerState() {
-        queryPowerState();
-        return _powerState;
+        return _snapshot.getPowerState();
+    }
+    
+    /**
+     * @return One of the <code>INPUT_</code> constants.
+     */
+    public int getActiveInput() {
+        return _snapshot.getActiveInput();
+    }
+    
+    public boolean getAudioMuteActive() {
+        return _snapshot.getAudioMuteActive();
+    }
+    
+    public boolean getVideoMuteActive() {
+        return _snapshot.getVideoMuteActive();
+    }
+    
+    public int getLampHours() {
+        return _snapshot.getLampHours();
+    }
+    
+    /**
+     * @return Warning and error bits of the fan, lamp, temperature,
+     *         cover, filter and other, packed like the <code>ERROR_</code> constants.
+     */
+    public int getErrorStatus() {
+        return _snapshot.getErrorStatus();
+    }
+    
+    /**
+     * @param eventType The <code>PJLinkEvent.EVENT_</code> type reporting the state.
+     * @return When the projector last reported the state, as a
+     *         <code>System.currentTimeMillis()</code> time, or 0 if it
+     *         hasn't or <code>eventType</code> isn't a state.
+     */
+    public long getConfirmedTime(int eventType) {
+        return _snapshot.getConfirmedTime(eventType);
+    }
+    
+    /**
+     * @return Snapshot of the device state as of the last response,
+     *         consistent across all its values.
+     */
+    public PJLinkState getState() {
+        return _snapshot;
+    }
+    
+    /**
+     * Queries every state the projector last reported more than
+     * <code>maxAge</code> milliseconds ago. Unlike the query methods,
+     * listeners are only notified of states that turn out to have changed.
+     * @param maxAge
+     * @return Completion of the queries sent, resolved with
+     *         <code>RESULT_OK</code> if every state was recent enough.
+     */
+    public PJLinkCompletion refreshIfOlderThan(long maxAge) {
+        int[] eventTypes = {
+            PJLinkEvent.EVENT_ERROR, PJLinkEvent.EVENT_POWER, PJLinkEvent.EVENT_INPUT,
+            PJLinkEvent.EVENT_AV_MUTE, PJLinkEvent.EVENT_LAMP
+        };
+        
+        boolean[] stale = new boolean[eventTypes.length];
+        int staleCount = 0;
+        
+        for (int i = 0; i < eventTypes.length; i++) {
+            stale[i] = isOlderThan(eventTypes[i], maxAge);
+            if (stale[i] == true) staleCount++;
+        }
+        
+        PJLinkCompletion completion = new PJLinkCompletion(staleCount);
+        
+        for (int i = 0; i < eventTypes.length; i++) {
+            if (stale[i] == true) push(new PJLinkCommand(queryFor(eventTypes[i])), completion);
+        }
+        
+        return completion;
+    }
+    
+    /**
+     * Queries one state if the projector last reported it more than
+     * <code>maxAge</code> milliseconds ago.
+     * @param eventType The <code>PJLinkEvent.EVENT_</code> type reporting the state.
+     * @param maxAge
+     * @return Completion of the query, resolved with
+     *         <code>RESULT_OK</code> if the state was recent enough, or
+     *         with <code>RESULT_OUT_OF_PARAMETER</code> if <code>eventType</code>
+     *         isn't a state.
+     */
+    public PJLinkCompletion refreshIfOlderThan(int eventType, long maxAge) {
+        if (eventType < PJLinkEvent.EVENT_ERROR || eventType > PJLinkEvent.EVENT_LAMP) {
+            return PJLinkCompletion.resolved(PJLinkCompletion.RESULT_OUT_OF_PARAMETER);
+        }
+        
+        if (isOlderThan(eventType, maxAge) == false) return PJLinkCompletion.resolved(PJLinkCompletion.RESULT_OK);
+        return push(new PJLinkCommand(queryFor(eventType)));
+    }
+    
+    private boolean isOlderThan(int eventType, long maxAge) {
+        return System.currentTimeMillis() - getConfirmedTime(eventType) > maxAge;
+    }
+    
+    /**
+     * @return The query that reports the state of an event type.
+     */
+    private String queryFor(int eventType) {
+        switch (eventType) {
+        case PJLinkEvent.EVENT_POWER:   return "%1POWR ?";
+        case PJLinkEvent.EVENT_INPUT:   return "%1INPT ?";
+        case PJLinkEvent.EVENT_AV_MUTE: return "%1AVMT ?";
+        case PJLinkEvent.EVENT_LAMP:    return "%1LAMP ?";
+        default:                        return "%1ERST ?";
+        }
+    }
+    
+    private void confirmed(int eventType) {
+        synchronized (_confirmedTime) {
+            _confirmedTime[eventType] = System.currentTimeMillis();
+        }
+    }
+    
+    private void forgetConfirmedTimes() {
+        synchronized (_confirmedTime) {
+            for (int i = 0; i < _confirmedTime.length; i++) _confirmedTime[i] = 0;
+        }
+        
+        publishSnapshot();
+    }
+    
+    /**
+     * Replaces the state snapshot with the current device state.
+     */
+    private synchronized void publishSnapshot() {
+        _snapshot = snapshot();
+    }
+    
+    private PJLinkState snapshot() {
+        synchronized (_confirmedTime) {
+            return new PJLinkState(
+                _powerState, _activeInput, _audioMuteActive, _videoMuteActive,
+                avMuteState(), _lampHours, packErrorStatus(), _confirmedTime
+            );
+        }
     }
     
+    /**
+     * @return <code>true</code> while a command is failing to reach the
+     *         projector, or while the circuit breaker is open.
+     */
     public boolean getConnectionError() {
-        return _connectionError;
+        return _connectionError == true || _circuitBreaker.getState() != CIRCUIT_CLOSED;
+    }
+    
+    /**
+     * After <code>BREAKER_FAILURE_THRESHOLD</code> commands in a row fail
+     * to reach the projector, the circuit breaker opens. Commands are
+     * then rejected without trying to connect, and polling stops. A
+     * single probe command is sent after a backoff, which doubles with
+     * every failed probe and is jittered so a room full of projectors
+     * doesn't retry in step. The breaker closes once a probe succeeds.
+     * @return <code>CIRCUIT_CLOSED</code>, <code>CIRCUIT_OPEN</code> or <code>CIRCUIT_HALF_OPEN</code>.
+     */
+    public int getCircuitState() {
+        return _circuitBreaker.getState();
+    }
+    
+    /**
+     * @return Number of commands rejected because the circuit breaker was open.
+     */
+    public long getRejectedCommandCount() {
+        return _circuitBreaker.getRejected();
     }
     
     public boolean getPrintDebug() {
@@ -237,48 +648,182 @@ public class PJLink {
         return _disablePolling;
     }
     
+    /**
+     * @return Number of seconds between polls while the projector is on.
+     */
     public long getRefreshInterval() {
-        return _refreshInterval;
+        return getRefreshInterval(POWER_ON);
+    }
+    
+    /**
+     * @param powerState
+     * @return Number of seconds between polls while the projector is in <code>powerState</code>.
+     */
+    public long getRefreshInterval(int powerState) {
+        if (powerState < POWER_OFF || powerState > POWER_WARMING) return 0;
+        return _refreshIntervals[powerState];
+    }
+    
+    public boolean getPersistentSession() {
+        return _persistentSession;
+    }
+    
+    /**
+     * @return <code>IO_ENGINE_BLOCKING</code> or <code>IO_ENGINE_SELECTOR</code>.
+     */
+    public int getIOEngine() {
+        return _ioEngine;
+    }
+    
+    public boolean getAlwaysNotify() {
+        return _alwaysNotify;
+    }
+    
+    public boolean getAsyncDispatch() {
+        return _asyncDispatch;
+    }
+    
+    public boolean getNotifications() {
+        return _notifications;
+    }
+    
+    /**
+     * @return Highest PJLink class the projector reported, or 0 until it has.
+     *         Only asked while notifications are enabled.
+     */
+    public int getProjectorClass() {
+        return _projectorClass;
+    }
+    
+    /**
+     * @return Number of events waiting for an asynchronous dispatch.
+     */
+    public int getDispatchQueueDepth() {
+        return _eventDispatcher.getDepth();
+    }
+    
+    /**
+     * @return Most events that have waited for an asynchronous dispatch at once.
+     */
+    public int getMaxDispatchQueueDepth() {
+        return _eventDispatcher.getMaxDepth();
+    }
+    
+    /**
+     * @return Milliseconds the last asynchronously dispatched event waited to be delivered.
+     */
+    public long getDispatchLag() {
+        return _eventDispatcher.getLag();
+    }
+    
+    /**
+     * @return Longest time, in milliseconds, an asynchronously dispatched event waited to be delivered.
+     */
+    public long getMaxDispatchLag() {
+        return _eventDispatcher.getMaxLag();
+    }
+    
+    /**
+     * @return Number of events dropped because the dispatch queue was full.
+     */
+    public long getDroppedEventCount() {
+        return _eventDispatcher.getDropped();
+    }
+    
+    /**
+     * @return Number of queries that were dropped because an identical
+     *         query was already waiting in the queue.
+     */
+    public long getCoalescedQueryCount() {
+        return _pjlinkQueue.getCoalescedQueries();
+    }
+    
+    /**
+     * @return Number of commands waiting to be sent.
+     */
+    public int getQueueDepth() {
+        return _pjlinkQueue.size();
+    }
+    
+    public int getQueueCapacity() {
+        return _pjlinkQueue.getCapacity();
+    }
+    
+    /**
+     * @return <code>QUEUE_OVERFLOW_DROP_OLDEST_POLL</code>, <code>QUEUE_OVERFLOW_REJECT</code>
+     *         or <code>QUEUE_OVERFLOW_COALESCE</code>.
+     */
+    public int getQueueOverflowPolicy() {
+        return _pjlinkQueue.getOverflowPolicy();
+    }
+    
+    /**
+     * @return Number of waiting commands dropped to make room for newer ones.
+     */
+    public long getQueueDroppedCount() {
+        return _pjlinkQueue.getDropped();
+    }
+    
+    /**
+     * @return Number of commands rejected because the queue was full.
+     */
+    public long getQueueRejectedCount() {
+        return _pjlinkQueue.getRejected();
     }
     
     
-    public void powerOn() {
-        _pjlinkQueue.push(new PJLinkCommand("%1POWR 1"));
+    public PJLinkCompletion powerOn() {
+        PJLinkCompletion completion = push(new PJLinkCommand("%1POWR 1"));
+        _rft.controlCommandSent();
         if (_powerState == POWER_OFF) {
             _newPowerState = (_disablePolling == false) ? POWER_WARMING : POWER_ON;
         }
         if (_disablePolling == false) queryPowerState();
+        return completion;
     }
     
-    public void powerOff() {
-        _pjlinkQueue.push(new PJLinkCommand("%1POWR 0"));
+    public PJLinkCompletion powerOff() {
+        PJLinkCompletion completion = push(new PJLinkCommand("%1POWR 0"));
+        _rft.controlCommandSent();
         if (_powerState == POWER_ON) {
             _newPowerState = (_disablePolling == false) ? POWER_COOLING : POWER_OFF;
         }
         if (_disablePolling == false) queryPowerState();
+        return completion;
     }
     
-    public void switchInput(int input) {
-        if (input < 11 || input > 59) return;
+    /**
+     * @param input One of the <code>INPUT_</code> constants.
+     * @return Completion of the switch, resolved with
+     *         <code>RESULT_OUT_OF_PARAMETER</code> if <code>input</code> isn't valid.
+     */
+    public PJLinkCompletion switchInput(int input) {
+        if (input < 11 || input > 59) return PJLinkCompletion.resolved(PJLinkCompletion.RESULT_OUT_OF_PARAMETER);
         
-        _pjlinkQueue.push(new PJLinkCommand("%1INPT " + input));
+        PJLinkCompletion completion = push(new PJLinkCommand("%1INPT " + input));
         _newActiveInput = input;
+        _rft.controlCommandSent();
+        return completion;
     }
     
-    public void muteAudio() {
-        if (_audioMuteActive == true) return;
+    /**
+     * The mute commands return a completion already resolved with
+     * <code>RESULT_OK</code> if the projector is in that state already.
+     */
+    public PJLinkCompletion muteAudio() {
+        if (_audioMuteActive == true) return PJLinkCompletion.resolved(PJLinkCompletion.RESULT_OK);
         _newAudioMuteActive = true;
-        sendAVMuteState();
+        return sendAVMuteState();
     }
     
-    public void unmuteAudio() {
-        if (_audioMuteActive == false) return;
+    public PJLinkCompletion unmuteAudio() {
+        if (_audioMuteActive == false) return PJLinkCompletion.resolved(PJLinkCompletion.RESULT_OK);
         if (_videoMuteActive == false) _newAudioMuteActive = false;
-        sendAVMuteState();
+        return sendAVMuteState();
     }
     
-    public void muteVideo() {
-        if (_videoMuteActive == true) return;
+    public PJLinkCompletion muteVideo() {
+        if (_videoMuteActive == true) return PJLinkCompletion.resolved(PJLinkCompletion.RESULT_OK);
         
         // Muting video also mutes audio, but the audio mute
         // state must be retained when video is unmuted again.
@@ -286,34 +831,39 @@ public class PJLink {
         
         _newAudioMuteActive = true;
         _newVideoMuteActive = true;
-        sendAVMuteState();
+        return sendAVMuteState();
     }
     
-    public void unmuteVideo() {
-        if (_videoMuteActive == false) return;
+    public PJLinkCompletion unmuteVideo() {
+        if (_videoMuteActive == false) return PJLinkCompletion.resolved(PJLinkCompletion.RESULT_OK);
         _newAudioMuteActive = _audioMuteStateBeforeVideoMuted;
         _newVideoMuteActive = false;
-        sendAVMuteState();
+        return sendAVMuteState();
     }
     
-    private void sendAVMuteState() {
+    private PJLinkCompletion sendAVMuteState() {
+        PJLinkCompletion completion;
+        
         if (_newVideoMuteActive == true) {
             // Mute audio and video.
-            _pjlinkQueue.push(new PJLinkCommand("%1AVMT 31"));
+            completion = push(new PJLinkCommand("%1AVMT 31"));
         }
         else {
             if (_newAudioMuteActive == true) {
                 // Unmute video, leave audio muted.
-                _pjlinkQueue.push(new PJLinkCommand("%1AVMT 10"));
-                _pjlinkQueue.push(new PJLinkCommand("%1AVMT 21"));
+                completion = new PJLinkCompletion(2);
+                push(new PJLinkCommand("%1AVMT 10"), completion);
+                push(new PJLinkCommand("%1AVMT 21"), completion);
             }
             else {
                 // Unmute audio and video.
-                _pjlinkQueue.push(new PJLinkCommand("%1AVMT 30"));
+                completion = push(new PJLinkCommand("%1AVMT 30"));
             }
         }
 
+        _rft.controlCommandSent();
         if (_disablePolling == false) queryAVMute();
+        return completion;
     }
     
     
@@ -321,37 +871,72 @@ public class PJLink {
      * Queries projector error status, power state, selected input,
      * A/V mute, and lamp hours. It does <i>not</i> query the input
      * list.
+     * @return Completion of all five queries.
      */
-    public void queryAll() {
-        queryErrorStatus();
-        queryPowerState();
-        queryInput();
-        queryAVMute();
-        queryLampHours();
+    public PJLinkCompletion queryAll() {
+        forgetPublishedState();
+        
+        PJLinkCompletion completion = new PJLinkCompletion(5);
+        queryAll(PRIORITY_QUERY, completion);
+        return completion;
+    }
+    
+    /**
+     * @param completion Completion of the five queries, or <code>null</code>.
+     */
+    private void queryAll(int priority, PJLinkCompletion completion) {
+        push(new PJLinkCommand("%1ERST ?", priority), completion);
+        push(new PJLinkCommand("%1POWR ?", priority), completion);
+        push(new PJLinkCommand("%1INPT ?", priority), completion);
+        push(new PJLinkCommand("%1AVMT ?", priority), completion);
+        push(new PJLinkCommand("%1LAMP ?", priority), completion);
+    }
+    
+    public PJLinkCompletion queryAVMute() {
+        forgetPublishedState(PJLinkEvent.EVENT_AV_MUTE);
+        return push(new PJLinkCommand("%1AVMT ?"));
+    }
+    
+    public PJLinkCompletion queryErrorStatus() {
+        forgetPublishedState(PJLinkEvent.EVENT_ERROR);
+        return push(new PJLinkCommand("%1ERST ?"));
     }
     
-    public void queryAVMute() {
-        _pjlinkQueue.push(new PJLinkCommand("%1AVMT ?"));
+    public PJLinkCompletion queryInput() {
+        forgetPublishedState(PJLinkEvent.EVENT_INPUT);
+        return push(new PJLinkCommand("%1INPT ?"));
     }
     
-    public void queryErrorStatus() {
-        _pjlinkQueue.push(new PJLinkCommand("%1ERST ?"));
+    public PJLinkCompletion queryInputList() {
+        return push(new PJLinkCommand("%1INST ?"));
     }
     
-    public void queryInput() {
-        _pjlinkQueue.push(new PJLinkCommand("%1INPT ?"));
+    public PJLinkCompletion queryPowerState() {
+        forgetPublishedState(PJLinkEvent.EVENT_POWER);
+        return push(new PJLinkCommand("%1POWR ?"));
     }
     
-    public void queryInputList() {
-        _pjlinkQueue.push(new PJLinkCommand("%1INST ?"));
+    public PJLinkCompletion queryLampHours() {
+        forgetPublishedState(PJLinkEvent.EVENT_LAMP);
+        return push(new PJLinkCommand("%1LAMP ?"));
     }
     
-    public void queryPowerState() {
-        _pjlinkQueue.push(new PJLinkCommand("%1POWR ?"));
+    /**
+     * Queues a command with a completion of its own.
+     * @return The command's completion.
+     */
+    private PJLinkCompletion push(PJLinkCommand command) {
+        PJLinkCompletion completion = new PJLinkCompletion(1);
+        push(command, completion);
+        return completion;
     }
     
-    public void queryLampHours() {
-        _pjlinkQueue.push(new PJLinkCommand("%1LAMP ?"));
+    /**
+     * @param completion Told the command's outcome, unless <code>null</code>.
+     */
+    private void push(PJLinkCommand command, PJLinkCompletion completion) {
+        if (completion != null) command.addCompletion(completion);
+        _pjlinkQueue.push(command);
     }
     
     public void setPassword(String password) {
@@ -360,7 +945,15 @@ public class PJLink {
     
     public void setIPAddress(String ipAddress) {
         _ipAddress = ipAddress;
+        _projectorClass = 0;
+        _rft.reschedule();
+        _circuitBreaker.reset();
+        forgetConfirmedTimes();
+        forgetPublishedState();
+        _responseHandler.forgetQueryErrors();
+        
         if (_ipAddress.length() != 0) queryAll();
+        if (_notifications == true) registerForNotifications();
     }
     
     public void setPort(int port) {
@@ -375,92 +968,1276 @@ public class PJLink {
         _disablePolling = value;
     }
     
+    /**
+     * Sets the interval between polls while the projector is on.
+     * @param value Number of seconds between polls of the projector state.
+     *              Values less than 1 are ignored.
+     * @see #setRefreshInterval(int, long)
+     */
     public void setRefreshInterval(long value) {
-        _refreshInterval = value;
+        setRefreshInterval(POWER_ON, value);
     }
     
-    private void updatePowerState() {
-        notifyListeners(new PJLinkEvent(PJLinkEvent.EVENT_POWER, _powerState));
-    }
-    
-    private void updateInputState() {
-        notifyListeners(new PJLinkEvent(PJLinkEvent.EVENT_INPUT, _activeInput));
-    }
-    
-    private void updateAVMuteState() {
-        int muteState = MUTE_OFF;
-        
-        if (_videoMuteActive == true && _audioMuteActive == true) {
-            muteState = MUTE_AUDIO_VIDEO;
-        }
-        else if (_videoMuteActive == true && _audioMuteActive == false) {
-            muteState = MUTE_VIDEO_ONLY;
-        }
-        else if (_videoMuteActive == false && _audioMuteActive == true) {
-            muteState = MUTE_AUDIO_ONLY;
-        }
+    /**
+     * Sets the interval between polls while the projector is in
+     * <code>powerState</code>. By default a projector that is off is
+     * polled every 15 seconds and one that is on every 5 seconds, while
+     * one that is warming or cooling has its power state polled every
+     * second. Polling also runs at the warming/cooling rate for a short
+     * while after a control command.
+     * @param powerState <code>POWER_OFF</code>, <code>POWER_ON</code>,
+     *                   <code>POWER_COOLING</code> or <code>POWER_WARMING</code>.
+     * @param value Number of seconds between polls. Values less than 1 are ignored.
+     */
+    public void setRefreshInterval(int powerState, long value) {
+        if (powerState < POWER_OFF || powerState > POWER_WARMING || value < 1) return;
         
-        notifyListeners(new PJLinkEvent(PJLinkEvent.EVENT_AV_MUTE, muteState));
+        _refreshIntervals[powerState] = value;
+        _rft.reschedule();
     }
     
-    
     /**
-     * The refresh timer queries all of the projector's parameters
-     * at a regular interval. This keeps the instance variables and
-     * class's listeners up to date without the need to poll the class.
+     * Keeps one session open to the projector and reuses it for later
+     * commands instead of connecting for each command. The session is
+     * reopened when the projector closes it on its idle timeout. If the
+     * projector keeps dropping the session, this instance falls back to
+     * connecting for each command until this is set again.
+     * @param value
      */
-    private class PJLinkRefreshTimer {
-        Timer _pjlinkRefreshTimer = new Timer(true);
-        int x = 0;
+    public void setPersistentSession(boolean value) {
+        _persistentSession = value;
+        _connectPerCommandFallback = false;
         
-        public PJLinkRefreshTimer () {
-            _pjlinkRefreshTimer.scheduleAtFixedRate(new TimerTask() {
-
-                public void run() {
-                    if (_ipAddress.length() != 0 && _disablePolling == false) queryAll();
-                }
-                
-            }, 5000, 5000);
-            
-        }
+        if (value == false) _pjlinkSocket.closeSession();
     }
     
     /**
-     * 
-     *
+     * Sets how many commands can wait to be sent. Commands beyond the
+     * new capacity are dropped, the least urgent first.
+     * @param capacity Values less than 1 are ignored.
+     */
+    public void setQueueCapacity(int capacity) {
+        if (capacity < 1) return;
+        _pjlinkQueue.setCapacity(capacity);
+    }
+    
+    /**
+     * Sets what happens to a command queued while the queue is full:
+     * <ul>
+     * <li><code>QUEUE_OVERFLOW_DROP_OLDEST_POLL</code>, the default, drops
+     *     the oldest waiting poll to make room, or rejects the command if
+     *     no poll is waiting.</li>
+     * <li><code>QUEUE_OVERFLOW_REJECT</code> rejects the command.</li>
+     * <li><code>QUEUE_OVERFLOW_COALESCE</code> drops a waiting control
+     *     command that sets the same thing, like an earlier input switch,
+     *     or rejects the command if there is none.</li>
+     * </ul>
+     * Identical queries are always coalesced, whether or not the queue is full.
+     * @param policy
+     */
+    public void setQueueOverflowPolicy(int policy) {
+        if (policy < QUEUE_OVERFLOW_DROP_OLDEST_POLL || policy > QUEUE_OVERFLOW_COALESCE) return;
+        _pjlinkQueue.setOverflowPolicy(policy);
+    }
+    
+    /**
+     * Listeners are normally notified only when a value reported by the
+     * projector changes. When set, they are notified of every response,
+     * so each poll also serves as a heartbeat.
+     * @param value
+     */
+    public void setAlwaysNotify(boolean value) {
+        _alwaysNotify = value;
+    }
+    
+    /**
+     * Listeners are normally notified on the thread that handled the
+     * response, which waits for them to return before it reads the next
+     * one. When set, events are handed to a dispatch thread of this
+     * instance instead, which delivers them in order. A slow listener
+     * then can't delay the I/O or trip the command timeout.
+     * <p>
+     * The dispatch queue holds <code>DISPATCH_QUEUE_CAPACITY</code> events.
+     * When it is full the oldest event is dropped, and its state is sent
+     * again after the next poll. The dispatch thread runs until this is
+     * turned off or the instance is disposed.
+     * @param value
+     */
+    public void setAsyncDispatch(boolean value) {
+        _asyncDispatch = value;
+        if (value == false) _eventDispatcher.stop();
+    }
+    
+    /**
+     * Accepts the status notifications that PJLink Class 2 projectors
+     * send over UDP port <code>PJLinkNotificationReceiver.NOTIFICATION_PORT</code>
+     * when their state changes. They are applied like responses and
+     * raise the same events. The projector must be set up to send them
+     * to this controller.
+     * <p>
+     * Once the projector reports that it supports Class 2, polling
+     * slows to a safety net every <code>NOTIFICATION_POLL_INTERVAL</code>,
+     * whatever its power state.
+     * @param value
+     */
+    public void setNotifications(boolean value) {
+        if (value == _notifications) return;
+        
+        _notifications = value;
+        
+        if (value == true) {
+            registerForNotifications();
+        }
+        else {
+            try {
+                PJLinkNotificationReceiver.getInstance().unregister(this);
+            }
+            catch (IOException ex) {
+                // Never registered.
+            }
+        }
+        
+        _rft.reschedule();
+    }
+    
+    private void registerForNotifications() {
+        try {
+            PJLinkNotificationReceiver receiver = PJLinkNotificationReceiver.getInstance();
+            
+            if (_ipAddress.length() == 0) {
+                receiver.unregister(this);
+                return;
+            }
+            
+            receiver.register(_ipAddress, this);
+        }
+        catch (IOException ex) {
+            System.out.println("PJLink error: Status notifications not available. " + ex);
+            return;
+        }
+        
+        // Find out whether the projector sends notifications.
+        _pjlinkQueue.push(new PJLinkCommand("%1CLSS ?"));
+    }
+    
+    /**
+     * Applies a status notification from the projector.
+     * Called on the notification receiver's thread.
+     * @param line
+     * @param length
+     */
+    void notificationReceived(byte[] line, int length) {
+        if (_printDebug == true) {
+            System.out.println("PJLink notification: " + new String(line, 0, length));
+            System.out.flush();
+        }
+        
+        applyResponse(line, length);
+    }
+    
+    /**
+     * Parses a line from the projector and applies it to the device state.
+     * Responses arrive on the I/O engine's thread and notifications on the
+     * receiver's, so lines are applied one at a time, under the lock the
+     * state snapshot is taken with. A snapshot never sees half of an update.
+     * <p>
+     * Only the state change holds the lock. The events it raises are
+     * delivered afterwards, so a listener can call back into this instance,
+     * or into one that is waiting on it, without deadlocking.
+     * @param line
+     * @param length
+     * @return The kind of line, one of the <code>PJLinkResponseParser.LINE_</code> constants.
+     */
+    private int applyResponse(byte[] line, int length) {
+        int kind;
+        Object[] events;
+        
+        synchronized (this) {
+            kind = PJLinkResponseParser.parse(line, length, _responseHandler);
+            
+            events = _heldEvents.toArray();
+            _heldEvents.clear();
+        }
+        
+        for (int i = 0; i < events.length; i++) deliverEvent((PJLinkEvent) events[i]);
+        
+        return kind;
+    }
+    
+    /**
+     * @return Notifications are enabled and the projector supports them.
+     */
+    private boolean usesNotifications() {
+        return _notifications == true && _projectorClass >= 2;
+    }
+    
+    /**
+     * Selects the engine that sends the queued commands.
+     * <p>
+     * <code>IO_ENGINE_BLOCKING</code>, the default, uses a queue thread
+     * per instance and a blocking socket with a reader thread per
+     * connection. <code>IO_ENGINE_SELECTOR</code> multiplexes the
+     * connections of every instance that selects it on one shared
+     * <code>java.nio</code> selector thread, so it adds no threads per
+     * projector. Both engines send the same commands in the same order.
+     * @param engine
+     */
+    public void setIOEngine(int engine) {
+        if (engine == _ioEngine) return;
+        
+        if (engine == IO_ENGINE_SELECTOR) {
+            try {
+                _selectorEngine = PJLinkSelectorEngine.getInstance();
+            }
+            catch (IOException ex) {
+                System.out.println("PJLink error: Selector I/O engine not available. " + ex);
+                return;
+            }
+            
+            _ioEngine = IO_ENGINE_SELECTOR;
+            _pjlinkSocket.closeSession();
+            _pjlinkQueue.engineChanged();
+        }
+        else if (engine == IO_ENGINE_BLOCKING) {
+            _ioEngine = IO_ENGINE_BLOCKING;
+            _selectorSession.shutdown();
+            _pjlinkQueue.engineChanged();
+        }
+    }
+    
+    private boolean usePersistentSession() {
+        return _persistentSession == true && _connectPerCommandFallback == false;
+    }
+    
+    /**
+     * Projectors that drop every session right after a response can't
+     * hold a session across commands. Revert to connect-per-command
+     * for them once the failures stop looking like idle timeouts.
+     */
+    private void sessionReuseFailed() {
+        _sessionReuseFailures++;
+        
+        if (_sessionReuseFailures >= SESSION_REUSE_MAX_FAILURES) {
+            _sessionReuseFailures = 0;
+            _connectPerCommandFallback = true;
+            if (_printDebug == true) System.out.println("PJLink persistent session disabled, projector keeps closing the connection. " + _ipAddress);
+        }
+    }
+    
+    /**
+     * Computed once per session, since it only depends on the greeting.
+     * @param key Random number sent in the projector's greeting.
+     * @return Digest that prefixes commands in an authenticated session,
+     *         as 32 lowercase ASCII hex digits.
+     */
+    private byte[] authDigest(String key) throws IOException {
+        byte[] hash;
+        
+        // Its own lock, so the blocking engine never holds the socket lock
+        // while it waits for the one responses are applied under.
+        synchronized (_digestLock) {
+            if (_md5 == null) {
+                try {
+                    _md5 = MessageDigest.getInstance("MD5");
+                }
+                catch (NoSuchAlgorithmException e) {
+                    System.out.println("PJLink error: MD5 encryption not supported. Disable authentication.");
+                    throw new IOException("MD5 not supported");
+                }
+            }
+            
+            String pjlinkHash = key + _pjlinkPassword;
+            hash = _md5.digest(pjlinkHash.getBytes("ASCII"));
+        }
+        
+        // Fixed width, so digests with leading zeros keep them.
+        byte[] digest = new byte[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            digest[i * 2]       = HEX_DIGITS[(hash[i] >> 4) & 0x0F];
+            digest[i * 2 + 1]   = HEX_DIGITS[hash[i] & 0x0F];
+        }
+        
+        return digest;
+    }
+    
+    /**
+     * @return The <code>PJLinkCompletion</code> result for the line that
+     *         answered a command. ERR1 to ERR4 have the same numbers as
+     *         their results.
+     */
+    private static int responseResult(int kind, byte[] line, int length) {
+        if (kind == PJLinkResponseParser.LINE_AUTH_ERROR) return PJLinkCompletion.RESULT_AUTHENTICATION_ERROR;
+        return PJLinkResponseParser.errorNumber(line, length);
+    }
+    
+    private int packErrorStatus() {
+        // Packed bits:
+        // | 15 | 14 | 13 | 12 | 11 | 10 | 9 | 8 | 7 | 6 | 5 | 4 | 3 | 2 | 1 | 0 |
+        // |Fail|Unav|Undf|    |  Other  | Filter| Cover |  Temp |  Lamp |  Fan  |
+        
+        // Bit 15: Projector Failure
+        // Bit 14: In Unavailable Time
+        // Bit 13: Undefined Command
+        
+        // Each status is 0 (OK), 1 (warning) or 2 (error), which lines
+        // up with the WARNING and ERROR bits of its field.
+        return  (_fanError       << 0) |
+                (_lampError      << 2) |
+                (_tempError      << 4) |
+                (_coverError     << 6) |
+                (_filterError    << 8) |
+                (_otherError     << 10);
+    }
+    
+    private void updatePowerState() {
+        _rft.reschedule();
+        publishState(PJLinkEvent.EVENT_POWER, _powerState);
+    }
+    
+    private void updateInputState() {
+        publishState(PJLinkEvent.EVENT_INPUT, _activeInput);
+    }
+    
+    private void updateAVMuteState() {
+        publishState(PJLinkEvent.EVENT_AV_MUTE, avMuteState());
+    }
+    
+    /**
+     * @return The <code>MUTE_</code> state of audio and video together.
+     */
+    private int avMuteState() {
+        if (_videoMuteActive == true && _audioMuteActive == true) return MUTE_AUDIO_VIDEO;
+        if (_videoMuteActive == true && _audioMuteActive == false) return MUTE_VIDEO_ONLY;
+        if (_videoMuteActive == false && _audioMuteActive == true) return MUTE_AUDIO_ONLY;
+        
+        return MUTE_OFF;
+    }
+    
+    /**
+     * Applies the responses parsed by <code>PJLinkResponseParser</code>
+     * to the device state and notifies the listeners. Shared by the
+     * I/O engines.
+     */
+    private class PJLinkResponseHandler implements PJLinkResponseParser.Handler {
+        
+        // Command awaiting a response, so an error can be told apart by what asked for it.
+        private volatile PJLinkCommand _command;
+        
+        // Last error each query was answered with, by command code.
+        private HashMap _queryErrors = new HashMap();
+        
+        /**
+         * @param command Command whose response is parsed next.
+         */
+        public void setCommand(PJLinkCommand command) {
+            _command = command;
+        }
+        
+        /**
+         * Reports the next query errors again, as for a new projector.
+         */
+        public void forgetQueryErrors() {
+            synchronized (_queryErrors) {
+                _queryErrors.clear();
+            }
+        }
+        
+        private void queryAnswered(int command) {
+            synchronized (_queryErrors) {
+                if (_queryErrors.isEmpty() == false) _queryErrors.remove(new Integer(command));
+            }
+        }
+        
+        public void authenticationError() {
+            System.out.println("PJLink authentication error. " + _ipAddress);
+        }
+        
+        public void commandAccepted(int command) {
+            switch (command) {
+            
+            case PJLinkResponseParser.COMMAND_POWR:
+                _powerState = _newPowerState;
+                updatePowerState();
+                break;
+                
+            case PJLinkResponseParser.COMMAND_INPT:
+                _activeInput = _newActiveInput;
+                updateInputState();
+                break;
+                
+            case PJLinkResponseParser.COMMAND_AVMT:
+                _audioMuteActive = _newAudioMuteActive;
+                _videoMuteActive = _newVideoMuteActive;
+                updateAVMuteState();
+                break;
+                
+            default: break;
+            }
+        }
+        
+        public void commandError(int command, int error) {
+            PJLinkCommand sent = _command;
+            
+            if (sent == null || sent.isQuery() == false) {
+                notifyTransient(new PJLinkEvent(PJLinkEvent.EVENT_ERROR, error));
+                return;
+            }
+            
+            // A poll gets the same ERR3 every time while the projector is
+            // off, so a query error is reported once, until the query is
+            // answered again. It isn't an error status, so like any other
+            // error reply it is transient: the next status is delivered
+            // whether or not it changed.
+            synchronized (_queryErrors) {
+                Integer previous = (Integer) _queryErrors.put(new Integer(command), new Integer(error));
+                if (previous != null && previous.intValue() == error) return;
+            }
+            
+            notifyTransient(new PJLinkEvent(PJLinkEvent.EVENT_ERROR, error));
+        }
+        
+        public void parameterError(int command) {
+            // Nonexistent input source.
+            if (command == PJLinkResponseParser.COMMAND_INPT) {
+                _newActiveInput = _activeInput; // Input switch cancelled.
+                notifyTransient(new PJLinkEvent(PJLinkEvent.EVENT_INPUT, PJLink.INPUT_ERROR_NONEXISTENT_SOURCE));
+            }
+            else if (command == PJLinkResponseParser.COMMAND_AVMT) {
+                _newAudioMuteActive = _audioMuteActive;
+                _newVideoMuteActive = _videoMuteActive;
+                notifyTransient(new PJLinkEvent(PJLinkEvent.EVENT_AV_MUTE, PJLink.MUTE_ERROR_CANNOT_MUTE));
+            }
+        }
+        
+        public void powerState(int powerState) {
+            confirmed(PJLinkEvent.EVENT_POWER);
+            queryAnswered(PJLinkResponseParser.COMMAND_POWR);
+            _powerState = powerState;
+            updatePowerState();
+        }
+        
+        public void activeInput(int input) {
+            confirmed(PJLinkEvent.EVENT_INPUT);
+            queryAnswered(PJLinkResponseParser.COMMAND_INPT);
+            
+            if (input > 0) {
+                _activeInput = input;
+            }
+            
+            updateInputState();
+        }
+        
+        public void avMute(int mute) {
+            confirmed(PJLinkEvent.EVENT_AV_MUTE);
+            queryAnswered(PJLinkResponseParser.COMMAND_AVMT);
+            
+            switch (mute) {
+            
+            case MUTE_VIDEO_ONLY:
+                _videoMuteActive = true;
+                _audioMuteActive = false;
+                break;
+            
+            case MUTE_AUDIO_ONLY:
+                _videoMuteActive = false;
+                _audioMuteActive = true;
+                break;
+                
+            case MUTE_AUDIO_VIDEO:
+                _videoMuteActive = true;
+                _audioMuteActive = true;
+                break;
+                
+            case MUTE_OFF:
+                _videoMuteActive = false;
+                _audioMuteActive = false;
+                break;
+                
+            default: break;
+            }
+            
+            updateAVMuteState();
+        }
+        
+        public void errorStatus(int fan, int lamp, int temp, int cover, int filter, int other) {
+            _fanError = fan;
+            _lampError = lamp;
+            _tempError = temp;
+            _coverError = cover;
+            _filterError = filter;
+            _otherError = other;
+            
+            confirmed(PJLinkEvent.EVENT_ERROR);
+            queryAnswered(PJLinkResponseParser.COMMAND_ERST);
+            publishState(PJLinkEvent.EVENT_ERROR, packErrorStatus());
+        }
+        
+        public void projectorClass(int projectorClass) {
+            _projectorClass = projectorClass;
+            _rft.reschedule();
+        }
+        
+        public void linkUp() {
+            // The projector restarted or came back on the network. Catch up on its state.
+            if (_disablePolling == false) queryAll(PRIORITY_POLL, null);
+        }
+        
+        public void lampHours(int hours) {
+            confirmed(PJLinkEvent.EVENT_LAMP);
+            queryAnswered(PJLinkResponseParser.COMMAND_LAMP);
+            _lampHours = hours;
+            publishState(PJLinkEvent.EVENT_LAMP, _lampHours);
+        }
+    }
+    
+    /**
+     * Delivers events to the listeners, in order, on a thread of its own
+     * so the thread that raised them never waits. The thread is started
+     * by the first event and lives until it is stopped, so events arriving
+     * at the poll rate don't each start a thread.
+     */
+    private class PJLinkEventDispatcher implements Runnable {
+        // Ring buffer of events waiting to be delivered.
+        private PJLinkEvent[] _events = new PJLinkEvent[DISPATCH_QUEUE_CAPACITY];
+        private long[] _queuedTimes = new long[DISPATCH_QUEUE_CAPACITY];
+        private int _head = 0;
+        private int _count = 0;
+        
+        private Thread _dispatchThread;
+        private boolean _stopping = false;  // Thread exits once the queue is empty.
+        
+        // Metrics.
+        private int _maxDepth = 0;
+        private long _lag = 0;
+        private long _maxLag = 0;
+        private long _dropped = 0;
+        
+        /**
+         * Queues <code>event</code> for delivery. Never blocks.
+         * @param event
+         */
+        public synchronized void dispatch(PJLinkEvent event) {
+            if (_count == _events.length) {
+                // Drop the oldest event rather than block the caller.
+                // Its state is delivered again after the next poll.
+                forgetPublishedState(_events[_head].getEventType());
+                _events[_head] = null;
+                _head = (_head + 1) % _events.length;
+                _count--;
+                _dropped++;
+            }
+            
+            int tail = (_head + _count) % _events.length;
+            _events[tail] = event;
+            _queuedTimes[tail] = System.currentTimeMillis();
+            _count++;
+            
+            if (_count > _maxDepth) _maxDepth = _count;
+            
+            _stopping = false;
+            
+            if (_dispatchThread == null) {
+                _dispatchThread = new Thread(this);
+                _dispatchThread.setDaemon(true);
+                _dispatchThread.start();
+            }
+            
+            notify();
+        }
+        
+        /**
+         * Lets the thread exit after it has delivered the queued events.
+         */
+        public synchronized void stop() {
+            _stopping = true;
+            notify();
+        }
+        
+        public synchronized int getDepth() {
+            return _count;
+        }
+        
+        public synchronized int getMaxDepth() {
+            return _maxDepth;
+        }
+        
+        public synchronized long getLag() {
+            return _lag;
+        }
+        
+        public synchronized long getMaxLag() {
+            return _maxLag;
+        }
+        
+        public synchronized long getDropped() {
+            return _dropped;
+        }
+        
+        public void run() {
+            while (true) {
+                PJLinkEvent event;
+                
+                synchronized (this) {
+                    while (_count == 0 && _stopping == false) {
+                        try {
+                            wait();
+                        }
+                        catch (InterruptedException ex) {
+                        }
+                    }
+                    
+                    if (_count == 0) {
+                        _dispatchThread = null;
+                        return;
+                    }
+                    
+                    event = _events[_head];
+                    _lag = System.currentTimeMillis() - _queuedTimes[_head];
+                    if (_lag > _maxLag) _maxLag = _lag;
+                    
+                    _events[_head] = null;
+                    _head = (_head + 1) % _events.length;
+                    _count--;
+                }
+                
+                deliverEvent(event);
+            }
+        }
+    }
+    
+    /**
+     * Stops sending commands to a projector that can't be reached, so
+     * the queue doesn't fill up with commands that each wait for the
+     * connection timeout. See <code>getCircuitState()</code>.
+     * <p>
+     * The I/O engines report the outcome of every command. Listeners
+     * are notified with <code>ERROR_CONNECTION</code> when the breaker
+     * opens and when it closes again.
+     */
+    private class PJLinkCircuitBreaker {
+        private int _state = CIRCUIT_CLOSED;
+        private int _failures = 0;              // Consecutive failed commands.
+        private long _backoff = BREAKER_BASE_BACKOFF;
+        private boolean _probeQueued = false;
+        private long _rejected = 0;
+        
+        private PJLinkTimeoutWheel.Timeout _probeTimeout;
+        
+        private Runnable _probe = new Runnable() {
+            public void run() {
+                synchronized (PJLinkCircuitBreaker.this) {
+                    _probeTimeout = null;
+                    if (_state != CIRCUIT_OPEN) return;
+                    
+                    _state = CIRCUIT_HALF_OPEN;
+                    _probeQueued = false;
+                }
+                
+                if (_printDebug == true) System.out.println("PJLink probing connection. " + _ipAddress);
+                
+                _pjlinkQueue.push(new PJLinkCommand("%1POWR ?", PRIORITY_CONTROL));
+            }
+        };
+        
+        public synchronized int getState() {
+            return _state;
+        }
+        
+        public synchronized long getRejected() {
+            return _rejected;
+        }
+        
+        /**
+         * Called by the queue before it accepts a command.
+         * @return <code>false</code> if the command must be rejected.
+         */
+        public synchronized boolean allowCommand() {
+            if (_state == CIRCUIT_CLOSED) return true;
+            
+            // The first command of a half open circuit is its probe.
+            if (_state == CIRCUIT_HALF_OPEN && _probeQueued == false) {
+                _probeQueued = true;
+                return true;
+            }
+            
+            _rejected++;
+            return false;
+        }
+        
+        public void commandSucceeded() {
+            synchronized (this) {
+                _failures = 0;
+                if (_state == CIRCUIT_CLOSED) return;
+                
+                _state = CIRCUIT_CLOSED;
+                _backoff = BREAKER_BASE_BACKOFF;
+            }
+            
+            if (_printDebug == true) System.out.println("PJLink connection restored. " + _ipAddress);
+            
+            notifyTransient(new PJLinkEvent(PJLinkEvent.EVENT_ERROR, PJLink.ERROR_CONNECTION));
+            queryAll(PRIORITY_POLL, null);
+        }
+        
+        public void commandFailed() {
+            boolean opened;
+            
+            synchronized (this) {
+                if (_state == CIRCUIT_OPEN) return;
+                
+                _failures++;
+                if (_state == CIRCUIT_CLOSED && _failures < BREAKER_FAILURE_THRESHOLD) return;
+                
+                // Open, or reopen after a failed probe with a longer backoff.
+                opened = (_state == CIRCUIT_CLOSED);
+                if (opened == false) _backoff = Math.min(_backoff * 2, BREAKER_MAX_BACKOFF);
+                _state = CIRCUIT_OPEN;
+                
+                // Wait between half and all of the backoff.
+                long delay = _backoff / 2 + _jitter.nextInt((int) (_backoff / 2) + 1);
+                _probeTimeout = PJLinkTimeoutWheel.getInstance().schedule(_probe, delay);
+            }
+            
+            // Fail the commands that were waiting, rather than have each one time out.
+            int dropped = _pjlinkQueue.clear();
+            
+            synchronized (this) {
+                _rejected += dropped;
+            }
+            
+            if (opened == true) {
+                if (_printDebug == true) System.out.println("PJLink projector unreachable, commands suspended. " + _ipAddress);
+                notifyTransient(new PJLinkEvent(PJLinkEvent.EVENT_ERROR, PJLink.ERROR_CONNECTION));
+            }
+        }
+        
+        /**
+         * Closes the circuit, for a new projector address.
+         */
+        public void reset() {
+            boolean wasOpen;
+            
+            synchronized (this) {
+                if (_probeTimeout != null) _probeTimeout.cancel();
+                _probeTimeout = null;
+                
+                wasOpen = (_state != CIRCUIT_CLOSED);
+                _state = CIRCUIT_CLOSED;
+                _failures = 0;
+                _backoff = BREAKER_BASE_BACKOFF;
+            }
+            
+            if (wasOpen == true) notifyTransient(new PJLinkEvent(PJLinkEvent.EVENT_ERROR, PJLink.ERROR_CONNECTION));
+        }
+    }
+    
+    /**
+     * The refresh timer queries all of the projector's parameters
+     * at a regular interval. This keeps the instance variables and
+     * class's listeners up to date without the need to poll the class.
+     * <p>
+     * The interval follows the projector's power state, so transitions
+     * show up quickly while a projector that is off is polled rarely.
+     * Polling also speeds up to the warming and cooling rate for
+     * <code>CONTROL_FAST_POLL_TIME</code> after a control command. The
+     * fast polls only ask for the power state; the rest of the state is
+     * still polled at the interval for a projector that is on.
+     * <p>
+     * A projector that sends status notifications is only polled as a
+     * safety net, see <code>setNotifications()</code>.
+     * <p>
+     * The polls of every instance share the timer thread of
+     * <code>PJLinkPollScheduler</code>.
+     */
+    private class PJLinkRefreshTimer {
+        private PJLinkPollScheduler.PollHandle _poll;
+        
+        private long _lastFullPoll = 0;     // When every parameter was last polled.
+        private long _fastPollUntil = 0;    // End of the fast polling after a control command.
+        
+        public PJLinkRefreshTimer() {
+            _poll = PJLinkPollScheduler.schedule(new Runnable() {
+                
+                public void run() {
+                    if (    _ipAddress.length() != 0 && _disablePolling == false &&
+                            _circuitBreaker.getState() == CIRCUIT_CLOSED) {
+                        poll();
+                    }
+                }
+                
+            }, pollInterval());
+        }
+        
+        /**
+         * Picks up a change to the refresh intervals or the power state.
+         */
+        public synchronized void reschedule() {
+            if (_disposed == true) return;
+            
+            long interval = pollInterval();
+            if (interval != _poll.getInterval()) _poll.reschedule(interval);
+        }
+        
+        public synchronized void cancel() {
+            _poll.cancel();
+        }
+        
+        /**
+         * Switches to fast polling for a while.
+         */
+        public synchronized void controlCommandSent() {
+            _fastPollUntil = System.currentTimeMillis() + CONTROL_FAST_POLL_TIME;
+            reschedule();
+        }
+        
+        private void poll() {
+            long now = System.currentTimeMillis();
+            boolean fullPoll = true;
+            
+            synchronized (this) {
+                long interval = _poll.getInterval();
+                long fullPollInterval = Math.max(interval, _refreshIntervals[POWER_ON] * 1000);
+                
+                // Half an interval of slack, for a poll that runs a little early.
+                if (now - _lastFullPoll + interval / 2 < fullPollInterval) {
+                    fullPoll = false;
+                }
+                else {
+                    _lastFullPoll = now;
+                }
+            }
+            
+            if (fullPoll == true) {
+                queryAll(PRIORITY_POLL, null);
+            }
+            else {
+                _pjlinkQueue.push(new PJLinkCommand("%1POWR ?", PRIORITY_POLL));
+            }
+            
+            // Slows down again once the fast polling after a control command is over.
+            reschedule();
+        }
+        
+        /**
+         * @return Milliseconds between polls for the current power state.
+         */
+        private synchronized long pollInterval() {
+            if (usesNotifications() == true) return NOTIFICATION_POLL_INTERVAL * 1000;
+            
+            int powerState = _powerState;
+            if (powerState < POWER_OFF || powerState > POWER_WARMING) powerState = POWER_ON;
+            
+            long interval = _refreshIntervals[powerState];
+            
+            if (System.currentTimeMillis() < _fastPollUntil) {
+                interval = Math.min(interval, Math.min(_refreshIntervals[POWER_WARMING], _refreshIntervals[POWER_COOLING]));
+            }
+            
+            return interval * 1000;
+        }
+    }
+    
+    /**
+     * Holds the commands waiting to be sent to the projector. A single
+     * runner thread drains everything pending and sends it as one batch
+     * over a single connection, and parks on the queue's monitor while
+     * there is nothing to do rather than spinning.
+     * <p>
+     * Commands wait in one lane per priority. The highest priority lane
+     * is always served first, so a control command goes out ahead of
+     * queued polls, even in the middle of a batch. To keep polls from
+     * starving, a lower lane gets a turn after it has been passed over
+     * <code>LANE_STARVATION_LIMIT</code> times.
      */
     private class PJLinkQueue {
-        ArrayList _commandQueue = new ArrayList();
+        private CommandRing[] _lanes = new CommandRing[PRIORITY_LANES];
+        private int[] _lanePassedOver = new int[PRIORITY_LANES];
+        
+        private int _capacity = DEFAULT_QUEUE_CAPACITY;
+        private int _size = 0;
+        private int _overflowPolicy = QUEUE_OVERFLOW_DROP_OLDEST_POLL;
+        
+        // Queries waiting in the lanes, by code, that will run after every
+        // pending command with the same code. Another identical query
+        // would return the same answer, so it isn't queued.
+        private HashMap _pendingQueries = new HashMap();
+        private long _coalescedQueries = 0;
+        
+        private long _dropped = 0;      // Waiting commands dropped to make room.
+        private long _rejected = 0;     // Commands rejected because the queue was full.
         
-        private Thread _queueThread = new Thread(new PJLinkQueueRunner());
+        // Runs the blocking engine. Only exists while that engine is selected.
+        private Thread _queueThread;
         
         public PJLinkQueue() {
-            _queueThread.start();
+            for (int i = 0; i < PRIORITY_LANES; i++) _lanes[i] = new CommandRing(_capacity);
+        }
+        
+        public void push(PJLinkCommand command) {
+            ArrayList rejected = new ArrayList();
+            boolean queued = add(command, rejected);
+            
+            reject(rejected);
+            if (queued == true) engineChanged();
+        }
+        
+        /**
+         * Puts <code>command</code> in its lane, unless it is coalesced.
+         * @param rejected Receives the commands that must be rejected,
+         *        which are completed once the lock is released.
+         * @return <code>true</code> if the command was added to a lane.
+         */
+        private synchronized boolean add(PJLinkCommand command, ArrayList rejected) {
+            if (_disposed == true || _circuitBreaker.allowCommand() == false) {
+                rejected.add(command);
+                return false;
+            }
+            
+            if (command.isQuery() == true) {
+                PJLinkCommand pending = (PJLinkCommand) _pendingQueries.get(command.getCode());
+                
+                if (pending != null) {
+                    // Keep the waiting query, at the more urgent of the two priorities.
+                    if (command.getPriority() < pending.getPriority()) {
+                        _lanes[pending.getPriority()].remove(pending);
+                        pending.setPriority(command.getPriority());
+                        _lanes[pending.getPriority()].add(pending);
+                    }
+                    
+                    // Its answer is this query's answer too.
+                    pending.merge(command);
+                    _coalescedQueries++;
+                    return false;
+                }
+            }
+            
+            if (_size >= _capacity && makeRoom(command, rejected) == false) {
+                _rejected++;
+                if (_printDebug == true) System.out.println("PJLink queue full, command rejected: " + command.getCommand());
+                rejected.add(command);
+                return false;
+            }
+            
+            if (command.isQuery() == true) {
+                _pendingQueries.put(command.getCode(), command);
+            }
+            else {
+                // A query queued before this command would report the old state.
+                _pendingQueries.remove(command.getCode());
+            }
+            
+            _lanes[command.getPriority()].add(command);
+            _size++;
+            return true;
+        }
+        
+        /**
+         * Completes <code>commands</code> as rejected. Completion listeners
+         * may push commands, so this is never called holding the lock.
+         */
+        private void reject(ArrayList commands) {
+            for (int i = 0; i < commands.size(); i++) {
+                ((PJLinkCommand) commands.get(i)).complete(PJLinkCompletion.RESULT_REJECTED);
+            }
+        }
+        
+        /**
+         * Applies the overflow policy to fit <code>command</code> in the full queue.
+         * @param dropped Receives the command dropped to make room.
+         * @return <code>false</code> if the command must be rejected.
+         */
+        private boolean makeRoom(PJLinkCommand command, ArrayList dropped) {
+            switch (_overflowPolicy) {
+            
+            case QUEUE_OVERFLOW_DROP_OLDEST_POLL:
+                if (_lanes[PRIORITY_POLL].isEmpty() == true) return false;
+                
+                dropped(_lanes[PRIORITY_POLL].poll(), dropped);
+                return true;
+                
+            case QUEUE_OVERFLOW_COALESCE:
+                // Identical queries never get this far.
+                if (command.isQuery() == true) return false;
+                
+                for (int i = 0; i < PRIORITY_LANES; i++) {
+                    for (int j = 0; j < _lanes[i].size(); j++) {
+                        PJLinkCommand waiting = _lanes[i].get(j);
+                        
+                        if (waiting.isQuery() == false && waiting.getTarget().equals(command.getTarget()) == true) {
+                            _lanes[i].remove(waiting);
+                            dropped(waiting, dropped);
+                            return true;
+                        }
+                    }
+                }
+                
+                return false;
+                
+            default:
+                return false;
+            }
+        }
+        
+        /**
+         * Accounts for a command taken out of a lane without being sent.
+         * @param dropped Receives <code>command</code>, to be rejected.
+         */
+        private void dropped(PJLinkCommand command, ArrayList dropped) {
+            _size--;
+            _dropped++;
+            
+            if (_pendingQueries.get(command.getCode()) == command) _pendingQueries.remove(command.getCode());
+            if (_printDebug == true) System.out.println("PJLink queue full, command dropped: " + command.getCommand());
+            dropped.add(command);
         }
         
-        public synchronized void push(PJLinkCommand command) {
-            _commandQueue.add(command);
+        public synchronized int size() {
+            return _size;
         }
         
-        private synchronized PJLinkCommand pop() {
-            if (_commandQueue.isEmpty() == true) return null;
-            return (PJLinkCommand) _commandQueue.remove(0);
+        public synchronized int getCapacity() {
+            return _capacity;
+        }
+        
+        /**
+         * Rebuilds the lanes at the new capacity. If they don't fit, the
+         * most urgent lanes are kept and the newest commands dropped.
+         * @param capacity
+         */
+        public void setCapacity(int capacity) {
+            ArrayList dropped = new ArrayList();
+            
+            synchronized (this) {
+                CommandRing[] lanes = _lanes;
+                
+                _lanes = new CommandRing[PRIORITY_LANES];
+                _capacity = capacity;
+                _size = 0;
+                
+                for (int i = 0; i < PRIORITY_LANES; i++) {
+                    _lanes[i] = new CommandRing(capacity);
+                    
+                    for (int j = 0; j < lanes[i].size(); j++) {
+                        _size++;
+                        
+                        if (_size > capacity) {
+                            dropped(lanes[i].get(j), dropped);
+                        }
+                        else {
+                            _lanes[i].add(lanes[i].get(j));
+                        }
+                    }
+                }
+            }
+            
+            reject(dropped);
+        }
+        
+        public synchronized int getOverflowPolicy() {
+            return _overflowPolicy;
+        }
+        
+        public synchronized void setOverflowPolicy(int policy) {
+            _overflowPolicy = policy;
+        }
+        
+        public synchronized long getDropped() {
+            return _dropped;
+        }
+        
+        public synchronized long getRejected() {
+            return _rejected;
+        }
+        
+        /**
+         * Hands the queue to the selected engine: starts or wakes the
+         * runner thread for the blocking engine, or lets the selector
+         * session know there is work.
+         */
+        public void engineChanged() {
+            synchronized (this) {
+                notify();   // Wakes the runner if it is parked, or lets it exit.
+                
+                if (_disposed == true) return;
+                
+                if (_ioEngine == IO_ENGINE_BLOCKING) {
+                    if (_queueThread == null) {
+                        _queueThread = new Thread(new PJLinkQueueRunner());
+                        _queueThread.setDaemon(true);
+                        _queueThread.start();
+                    }
+                    
+                    return;
+                }
+            }
+            
+            _selectorSession.commandQueued();
+        }
+        
+        public synchronized long getCoalescedQueries() {
+            return _coalescedQueries;
+        }
+        
+        /**
+         * Blocks until a command is available.
+         * @return <code>null</code> once the blocking engine is no longer
+         *         selected, or the instance is disposed of.
+         */
+        private synchronized PJLinkCommand pop() throws InterruptedException {
+            PJLinkCommand command = null;
+            
+            while (_ioEngine == IO_ENGINE_BLOCKING && _disposed == false && (command = poll()) == null) wait();
+            
+            if (command == null) _queueThread = null;   // Runner is exiting.
+            return command;
+        }
+        
+        /**
+         * @return The next command to send, or <code>null</code> if the queue is empty.
+         */
+        public synchronized PJLinkCommand poll() {
+            int lane = -1;
+            
+            for (int i = 0; i < PRIORITY_LANES; i++) {
+                if (_lanes[i].isEmpty() == true) continue;
+                
+                if (lane < 0) {
+                    lane = i;
+                }
+                else if (++_lanePassedOver[i] > LANE_STARVATION_LIMIT) {
+                    lane = i;
+                }
+            }
+            
+            if (lane < 0) return null;
+            
+            _lanePassedOver[lane] = 0;
+            
+            PJLinkCommand command = _lanes[lane].poll();
+            _size--;
+            
+            if (_pendingQueries.get(command.getCode()) == command) _pendingQueries.remove(command.getCode());
+            
+            return command;
+        }
+        
+        /**
+         * Drops every waiting command.
+         * @return Number of commands dropped.
+         */
+        public int clear() {
+            ArrayList dropped = new ArrayList();
+            
+            synchronized (this) {
+                for (int i = 0; i < PRIORITY_LANES; i++) {
+                    PJLinkCommand command;
+                    while ((command = _lanes[i].poll()) != null) dropped.add(command);
+                }
+                
+                _size = 0;
+                _pendingQueries.clear();
+            }
+            
+            reject(dropped);
+            return dropped.size();
         }
         
         public synchronized boolean isEmpty() {
-            return _commandQueue.isEmpty();
+            return _size == 0;
+        }
+        
+        /**
+         * Fixed size circular buffer holding one lane. Commands are added
+         * at the tail and taken from the head in constant time.
+         */
+        private class CommandRing {
+            private PJLinkCommand[] _commands;
+            private int _head = 0;
+            private int _count = 0;
+            
+            public CommandRing(int capacity) {
+                _commands = new PJLinkCommand[capacity];
+            }
+            
+            public int size() {
+                return _count;
+            }
+            
+            public boolean isEmpty() {
+                return _count == 0;
+            }
+            
+            /**
+             * @param index Position from the head.
+             */
+            public PJLinkCommand get(int index) {
+                return _commands[(_head + index) % _commands.length];
+            }
+            
+            /**
+             * The queue's capacity is never more than a lane's, so there is always room.
+             */
+            public void add(PJLinkCommand command) {
+                _commands[(_head + _count) % _commands.length] = command;
+                _count++;
+            }
+            
+            public PJLinkCommand poll() {
+                if (_count == 0) return null;
+                
+                PJLinkCommand command = _commands[_head];
+                _commands[_head] = null;
+                _head = (_head + 1) % _commands.length;
+                _count--;
+                
+                return command;
+            }
+            
+            /**
+             * Removes a command from the middle of the lane, closing the gap.
+             */
+            public boolean remove(PJLinkCommand command) {
+                for (int i = 0; i < _count; i++) {
+                    if (get(i) != command) continue;
+                    
+                    for (int j = i; j < _count - 1; j++) {
+                        _commands[(_head + j) % _commands.length] = get(j + 1);
+                    }
+                    
+                    _count--;
+                    _commands[(_head + _count) % _commands.length] = null;
+                    return true;
+                }
+                
+                return false;
+            }
+            
+            public void clear() {
+                for (int i = 0; i < _commands.length; i++) _commands[i] = null;
+                
+                _head = 0;
+                _count = 0;
+            }
         }
         
         private class PJLinkQueueRunner implements Runnable {
             
             public void run() {
                 while (true) {
-                    if (_commandQueue.isEmpty() == true) {
-                        Thread.yield();
+                    try {
+                        PJLinkCommand command = pop();
+                        if (command == null) return;
+                        
+                        if (_ipAddress.length() != 0) {
+                            _pjlinkSocket.sendCommands(command);
+                        }
+                        else {
+                            // Commands can't be sent without an address.
+                            command.complete(PJLinkCompletion.RESULT_REJECTED);
+                        }
                     }
-                    else {
-                        PJLinkCommand command = (PJLinkCommand) pop();
-                        if (command != null) command.execute();
+                    catch (InterruptedException ex) {
+                        return;
                     }
                 }
             }
@@ -471,92 +2248,193 @@ public class PJLink {
         private String _pjlinkKey = "";         // Random number generated by PJLink upon connect.
         
         private Socket _socket = new Socket();
-        private BufferedReader _socketReader;
-        private PrintWriter _socketWriter;
+        private InputStream _socketReader;
+        private OutputStream _socketWriter;
         private Thread _socketThread;
         private SocketDataListener _socketDataListener;
         
-        private MessageDigest _md5;
-        
         private boolean _sessionUsesAuthentication = false;
+        private byte[] _sessionDigest;      // Computed from _pjlinkKey on the session's first command.
+        
+        // Address the open session is connected to.
+        private String _sessionIPAddress = "";
+        private int _sessionPort = 0;
         
         ////////////////////////////////////////
         // TODO: Turn this into a state machine.
         ////////////////////////////////////////
         private boolean _socketReadyForCommand = false;     // Projector has responded after opening socket.
         private boolean _socketCommandReceived = true;
+        private boolean _socketResponseReceived = false;    // Set only by a response, not by a disconnect.
+        private int _socketResult = PJLinkCompletion.RESULT_OK;     // What the response said.
         
         private Object _socketLock = new Object();
         
-        public PJLinkSocket() {
+        /**
+         * Sends <code>command</code>, then every command pending in the
+         * queue, back-to-back over one session. Each command is written
+         * once the projector has answered the previous one, and the
+         * session is closed afterwards unless it is persistent.
+         * 
+         * @param command First command of the batch.
+         * 
+         * This method is already called from another thread.
+         */
+        public void sendCommands(PJLinkCommand command) {
+            synchronized (_socketLock) {
+                while (command != null) {
+                    sendCommand(command);
+                    command = (_ioEngine == IO_ENGINE_BLOCKING) ? _pjlinkQueue.poll() : null;
+                }
+                
+                if (usePersistentSession() == false) disconnect();
+            }
+        }
+        
+        private void sendCommand(PJLinkCommand command) {
+            if (_printDebug == true) {
+                System.out.println("Executing command: " + command.getCommand());
+                System.out.flush();
+            }
+            
+            // Expires the connection if it stalls. This runs on the wheel
+            // thread shared by every projector, so it only closes the socket,
+            // which releases this thread to report the error.
+            PJLinkTimeoutWheel.Timeout connectionExpire = PJLinkTimeoutWheel.getInstance().schedule(new Runnable() {
+                public void run() {
+                    _connectionError = true;
+                    
+                    if (_printDebug == true) System.out.println("PJLink connection timed out. " + _ipAddress);
+                    
+                    try {
+                        _socket.close();
+                    }
+                    catch (IOException ex) {
+                        // Don't care.  Socket is getting destroyed.
+                    }
+                }
+            }, COMMAND_TIMEOUT);
+            
+            boolean responseReceived = false;
+            
             try {
-                _md5 = MessageDigest.getInstance("MD5");
+                boolean reusingSession = isSessionOpen();
+                if (reusingSession == false) connect();
+                
+                responseReceived = writeCommand(command);
+                
+                if (reusingSession == true) {
+                    if (responseReceived == true) {
+                        _sessionReuseFailures = 0;
+                    }
+                    else if (_connectionError == false) {
+                        // The projector closed the session before answering,
+                        // most likely on its idle timeout. Retry once on a
+                        // new connection.
+                        sessionReuseFailed();
+                        connect();
+                        responseReceived = writeCommand(command);
+                    }
+                }
+            }
+            catch (IOException ex) {
+                if (_printDebug == true && _connectionError == false) System.out.println("PJLink connection error. " + _ipAddress);
+                
+                _connectionError = true;
             }
-            catch (NoSuchAlgorithmException e) {
-                System.out.println("PJLink error: MD5 encryption not supported. Disable authentication.");
+            catch (Exception ex) {
+                if (_printDebug == true) System.out.println("Unknown PJLink connection error. " + _ipAddress);
             }
+            
+            
+            connectionExpire.cancel();
+            
+            if (responseReceived == true && _connectionError == false) {
+                _circuitBreaker.commandSucceeded();
+                command.complete(_socketResult);
+            }
+            else {
+                _circuitBreaker.commandFailed();
+                command.complete(PJLinkCompletion.RESULT_TIMEOUT);
+            }
+            
+            if (_connectionError == true) notifyTransient(new PJLinkEvent(PJLinkEvent.EVENT_ERROR, PJLink.ERROR_CONNECTION));
+            
+            if (_connectPerCommandFallback == true || _connectionError == true) disconnect();
+            
+            boolean oldConnectionErrorState = _connectionError;
+            _connectionError = false;
+            
+            if (oldConnectionErrorState == true) notifyTransient(new PJLinkEvent(PJLinkEvent.EVENT_ERROR, PJLink.ERROR_CONNECTION));
         }
         
         /**
-         * 
-         * @param command
-         * 
-         * This method is already called from another thread.
+         * Closes the session if one is open.
          */
-        public void sendCommand(String command) {
+        public void closeSession() {
             synchronized (_socketLock) {
-                // Expires the connection if it stalls.
-                Timer connectionExpire = new Timer(false);
-                connectionExpire.schedule(new TimerTask() {
-                    public void run() {
-                        _connectionError = true;
-                        
-                        if (_printDebug == true) System.out.println("PJLink connection timed out. " + _ipAddress);
-                        
-                        disconnect();
-                        notifyListeners(new PJLinkEvent(PJLinkEvent.EVENT_ERROR, PJLink.ERROR_CONNECTION));
-                        this.cancel();
-                    }
-                }, 4000);
-                
-                try {
-                    connect();
-                    
-                    while (_socketReadyForCommand == false) Thread.yield();
-                    
-                    if (_socketWriter != null) {    // This prevents the Duet module from crashing.
-                        if (_sessionUsesAuthentication == true) {
-                            String pjlinkHash = _pjlinkKey  + _pjlinkPassword;
-                            String commandHash = new BigInteger(1, _md5.digest(pjlinkHash.getBytes("ASCII"))).toString(16) + command + "\r";
-                            _socketWriter.print(commandHash);
-                        }
-                        else {
-                            _socketWriter.print(command + "\r");
-                        }
-                        
-                        _socketWriter.flush();
-                        
-                        while (_socketCommandReceived == false) Thread.yield();
-                    }
-                }
-                catch (IOException ex) {
-                    _connectionError = true;
-                    notifyListeners(new PJLinkEvent(PJLinkEvent.EVENT_ERROR, PJLink.ERROR_CONNECTION));
-                    
-                    if (_printDebug == true) System.out.println("PJLink connection error. " + _ipAddress);
-                }
-                catch (Exception ex) {
-                    if (_printDebug == true) System.out.println("Unknown PJLink connection error. " + _ipAddress);
-                }
-
-                
-                connectionExpire.cancel();
-                
-                boolean oldConnectionErrorState = _connectionError;
-                _connectionError = false;
-                
-                if (oldConnectionErrorState == true) notifyListeners(new PJLinkEvent(PJLinkEvent.EVENT_ERROR, PJLink.ERROR_CONNECTION));
+                disconnect();
+            }
+        }
+        
+        /**
+         * Sends a command on the current connection and waits for the
+         * projector's response. Must be called while holding the socket lock.
+         * 
+         * @return <code>false</code> if the connection closed before a response arrived.
+         */
+        private boolean writeCommand(PJLinkCommand command) throws IOException, InterruptedException {
+            long waitStart = System.currentTimeMillis();
+            while (_socketReadyForCommand == false) waitForSocket(waitStart);
+            
+            if (_socketWriter == null) return false;    // This prevents the Duet module from crashing.
+            
+            _socketCommandReceived = false;
+            _socketResponseReceived = false;
+            _socketResult = PJLinkCompletion.RESULT_OK;
+            _responseHandler.setCommand(command);
+            
+            if (_sessionUsesAuthentication == true) {
+                if (_sessionDigest == null) _sessionDigest = authDigest(_pjlinkKey);
+                _socketWriter.write(_sessionDigest);
             }
+            
+            _socketWriter.write(command.getBytes());
+            _socketWriter.flush();      // Digest and command leave in one segment.
+            
+            waitStart = System.currentTimeMillis();
+            while (_socketCommandReceived == false) waitForSocket(waitStart);
+            
+            return _socketResponseReceived;
+        }
+        
+        /**
+         * Waits for the listener thread to signal. The command deadline
+         * normally ends a stalled wait by closing the socket, but it can
+         * fire late if the wall clock is set back, so the wait is bounded.
+         * @param waitStart When the caller started waiting.
+         * @throws IOException <code>SOCKET_WAIT_LIMIT</code> has passed.
+         */
+        private void waitForSocket(long waitStart) throws IOException, InterruptedException {
+            // A clock set back counts as the limit passing.
+            long waited = System.currentTimeMillis() - waitStart;
+            if (waited >= SOCKET_WAIT_LIMIT || waited < 0) throw new IOException("No response from the projector.");
+            
+            _socketLock.wait(SOCKET_WAIT_LIMIT - waited);
+        }
+        
+        /**
+         * @return A session to the current address is open and has
+         *         completed its greeting.
+         */
+        private boolean isSessionOpen() {
+            return  _connectPerCommandFallback == false &&
+                    _socket != null &&
+                    _socket.isClosed() == false &&
+                    _socketWriter != null &&
+                    _socketReadyForCommand == true &&
+                    _sessionIPAddress.equals(_ipAddress) &&
+                    _sessionPort == _TCPPort;
         }
         
         private void connect() throws IOException {
@@ -573,33 +2451,44 @@ public class PJLink {
                 }
             }
             
-            _socket = new Socket(_ipAddress, _TCPPort);
+            // Assigned before connecting, so an expiring deadline can abort the connect.
+            _socket = new Socket();
             _socket.setTcpNoDelay(true);
-            _socketReader = new BufferedReader(new InputStreamReader(_socket.getInputStream()));
-            _socketWriter = new PrintWriter(_socket.getOutputStream(), true);
+            _socket.connect(new InetSocketAddress(_ipAddress, _TCPPort), COMMAND_TIMEOUT);
+            _socketReader = new BufferedInputStream(_socket.getInputStream(), 256);
+            _socketWriter = new BufferedOutputStream(_socket.getOutputStream(), 256);
+            
+            _sessionIPAddress = _ipAddress;
+            _sessionPort = _TCPPort;
             
             _sessionUsesAuthentication = false;
+            _sessionDigest = null;
             _socketReadyForCommand = false;
             _socketCommandReceived = false;
+            _socketResponseReceived = false;
             _pjlinkKey = "";
             
-            _socketDataListener = new SocketDataListener();
+            _socketDataListener = new SocketDataListener(_socket, _socketReader);
             _socketThread = new Thread(_socketDataListener);
             _socketThread.start();
         }
         
         private void disconnect() {
-            try {
-                _socket.close();
+            synchronized (_socketLock) {
+                try {
+                    _socket.close();
+                }
+                catch (IOException ex) {
+                    // Don't care.  Socket is getting destroyed.
+                }
+                
                 _socketReader = null;
                 _socketWriter = null;
-                _socketCommandReceived = true;
                 
                 _socketReadyForCommand = true;
                 _socketCommandReceived = true;
-            }
-            catch (IOException ex) {
-                // Don't care.  Socket is getting destroyed.
+                
+                _socketLock.notifyAll();
             }
         }
         
@@ -608,227 +2497,463 @@ public class PJLink {
         ***********************************************************/
         private class SocketDataListener implements Runnable {
             
+            // The connection this listener reads from. A persistent session
+            // may be replaced while an old listener is still shutting down.
+            private Socket _listenerSocket;
+            private InputStream _listenerReader;
+            
+            private byte[] _line = new byte[PJLinkResponseParser.MAX_LINE_LENGTH];
+            private int _lineLength = 0;
+            
+            public SocketDataListener(Socket socket, InputStream reader) {
+                _listenerSocket = socket;
+                _listenerReader = reader;
+            }
+            
             public void run() {
-                String line;
+                int b;
                 
                 try {
-                    while ( _socketReader != null &&
-                            _socket != null &&
-                            _socket.isClosed() == false &&
-                            (line = _socketReader.readLine()) != null) {
-                        
-                        if (_printDebug == true) {
-                            System.out.println("PJLink received: " + line);
-                            System.out.flush();
-                        }
-                        
-                        // Projector greeting, no authentication.
-                        if (line.startsWith("PJLINK 0")) {
-                            _pjlinkKey = "";
-                            _sessionUsesAuthentication = false;
-                            _socketReadyForCommand = true;
-                        }
+                    while ( _listenerSocket.isClosed() == false &&
+                            (b = _listenerReader.read()) != -1) {
                         
-                        // Projector greeting, authentication challenge.
-                        else if (line.startsWith("PJLINK 1 ")) {
-                            _pjlinkKey = line.substring(9);
-                            _sessionUsesAuthentication = true;
-                            _socketReadyForCommand = true;
+                        if (b != '\r' && b != '\n') {
+                            if (_lineLength < _line.length) _line[_lineLength++] = (byte) b;
                         }
-                        
-                        // PJLink data response.
-                        else {
-                            // Authentication error.
-                            if (line.indexOf(" ERRA") > -1) {
-                                System.out.println("PJLink authentication error. " + _ipAddress);
-                                _socket.close();
-                            }
-                            
-                            // Undefined command.
-                            if (line.endsWith("ERR1")){                                 
-                                notifyListeners(new PJLinkEvent(PJLinkEvent.EVENT_ERROR, PJLink.ERROR_UNDEFINED_COMMAND));
-                            }
-                            
-                            // Unavailable time.
-                            if (line.endsWith("ERR3")){                                 
-                                notifyListeners(new PJLinkEvent(PJLinkEvent.EVENT_ERROR, PJLink.ERROR_UNAVAILABLE_TIME));
-                            }
-                            
-                            // Projector failure.
-                            else if (line.endsWith("ERR4")) {
-                                notifyListeners(new PJLinkEvent(PJLinkEvent.EVENT_ERROR, PJLink.ERROR_PROJECTOR_FAILURE));
-                            }
-                            
-                            // Power response.
-                            else if (line.startsWith("%1POWR=")) {
-                                
-                                // Accepted power command.
-                                if (line.endsWith("OK")) {
-                                    _powerState = _newPowerState;
-                                    updatePowerState();
-                                }
-                                
-                                // Returned power state value.
-                                else {
-                                    int powerState = Integer.parseInt(line.substring(7));
-                                    _powerState = powerState;
-                                    updatePowerState();
-                                }
-                            }
-                            
-                            // Input response.
-                            else if (line.startsWith("%1INPT=")) {
-                                
-                                // Accepted input selection.
-                                if (line.endsWith("OK")) {
-                                    _activeInput = _newActiveInput;
-                                    updateInputState();
-                                }
-                                
-                                // Nonexistent input source.
-                                else if (line.endsWith("ERR2")) {
-                                    _newActiveInput = _activeInput; // Input switch cancelled.
-                                    notifyListeners(new PJLinkEvent(PJLinkEvent.EVENT_INPUT, PJLink.INPUT_ERROR_NONEXISTENT_SOURCE));
-                                }
-                                
-                                // Returned active input value.
-                                else {
-                                    int activeInput = Integer.parseInt(line.substring(7, 8));
-                                    
-                                    if (activeInput > 0) {
-                                        _activeInput = activeInput;
-                                    }
-                                    
-                                    updateInputState();
-                                }
-                            }
-                            
-                            // A/V mute response.
-                            else if (line.startsWith("%1AVMT=")) {                              
-                                // Accepted mute instruction.
-                                if (line.endsWith("OK")) {
-                                    _audioMuteActive = _newAudioMuteActive;
-                                    _videoMuteActive = _newVideoMuteActive;
-                                    updateAVMuteState();
-                                }
-                                else if (line.endsWith("ERR2")) {
-                                    _newAudioMuteActive = _audioMuteActive;
-                                    _newVideoMuteActive = _videoMuteActive;
-                                    notifyListeners(new PJLinkEvent(PJLinkEvent.EVENT_AV_MUTE, PJLink.MUTE_ERROR_CANNOT_MUTE));
-                                }
-                                else {
-                                    int avmt = Integer.parseInt(line.substring(7,9));
-                                    
-                                    switch (avmt) {
-                                    
-                                    case MUTE_VIDEO_ONLY:
-                                        _videoMuteActive = true;
-                                        _audioMuteActive = false;
-                                        break;
-                                    
-                                    case MUTE_AUDIO_ONLY:
-                                        _videoMuteActive = false;
-                                        _audioMuteActive = true;
-                                        break;
-                                        
-                                    case MUTE_AUDIO_VIDEO:
-                                        _videoMuteActive = true;
-                                        _audioMuteActive = true;
-                                        break;
-                                        
-                                    case MUTE_OFF:
-                                        _videoMuteActive = false;
-                                        _audioMuteActive = false;
-                                        break;
-                                        
-                                    default: break;
-                                    }
-                                    
-                                    updateAVMuteState();
-                                }
-                            }
-                            
-                            // Error status response.
-                            else if (line.startsWith("%1ERST=")) {
-                                if (line.length() == 13) {
-                                    _fanError = Integer.parseInt(line.substring(7, 8));
-                                    _lampError = Integer.parseInt(line.substring(8, 9));
-                                    _tempError = Integer.parseInt(line.substring(9, 10));
-                                    _coverError = Integer.parseInt(line.substring(10, 11));
-                                    _filterError = Integer.parseInt(line.substring(11, 12));
-                                    _otherError = Integer.parseInt(line.substring(12, 13));
-                                    
-                                    // TODO: Refactor error status bit packing.
-                                    //       This method will just confuse people who are unfamiliar with binary operations.
-                                    //       Make it easy and well-named.
-                                    
-                                    // Packed bits:
-                                    // | 15 | 14 | 13 | 12 | 11 | 10 | 9 | 8 | 7 | 6 | 5 | 4 | 3 | 2 | 1 | 0 |
-                                    // |Fail|Unav|Undf|    |  Other  | Filter| Cover |  Temp |  Lamp |  Fan  |
-                                    
-                                    // Bit 15: Projector Failure
-                                    // Bit 14: In Unavailable Time
-                                    // Bit 13: Undefined Command
-                                    
-                                    int packedData =    _fanError       << 0 +
-                                                        _lampError      << 2 + 
-                                                        _tempError      << 4 +
-                                                        _coverError     << 6 +
-                                                        _filterError    << 8 +
-                                                        _otherError     << 10;
-                                    
-                                    notifyListeners(new PJLinkEvent(PJLinkEvent.EVENT_ERROR, packedData));
-                                }
-                            }
-                            
-                            // Lamp status response.
-                            else if (line.startsWith("%1LAMP=")) {
-                                int hoursEndPos = line.indexOf(' ', 7);
-                                
-                                if (hoursEndPos > -1) {
-                                    _lampHours = Integer.parseInt(line.substring(7, hoursEndPos));
-                                    notifyListeners(new PJLinkEvent(PJLinkEvent.EVENT_LAMP, _lampHours));
-                                }
-                            }
-                            
-                            // Input list response.
-                            else if (line.startsWith("%1INST=")) {
-                                // TODO: Implement list enumeration response.
-                            }
-                            
-                            _socketCommandReceived = true;
+                        else if (_lineLength > 0) {
+                            lineReceived();
+                            _lineLength = 0;
                         }
                     }
-                    
-                    if (_socket != null) disconnect();
                 }
                 catch (IOException ex) {
+                    // Connection was closed or reset.
+                }
+                
+                // Release a sender still waiting on this connection.
+                synchronized (_socketLock) {
+                    if (_listenerSocket == _socket) disconnect();
+                }
+            }
+            
+            private void lineReceived() throws IOException {
+                if (_printDebug == true) {
+                    System.out.println("PJLink received: " + new String(_line, 0, _lineLength));
+                    System.out.flush();
+                }
+                
+                int kind = applyResponse(_line, _lineLength);
+                
+                // Projector greeting, no authentication.
+                if (kind == PJLinkResponseParser.LINE_GREETING) {
+                    _pjlinkKey = "";
+                    _sessionUsesAuthentication = false;
+                    _socketReadyForCommand = true;
+                    signalSender();
+                }
+                
+                // Projector greeting, authentication challenge.
+                else if (kind == PJLinkResponseParser.LINE_GREETING_AUTH) {
+                    _pjlinkKey = PJLinkResponseParser.greetingKey(_line, _lineLength);
+                    _sessionUsesAuthentication = true;
+                    _socketReadyForCommand = true;
+                    signalSender();
+                }
+                
+                // PJLink data response.
+                else {
+                    // Authentication error.
+                    if (kind == PJLinkResponseParser.LINE_AUTH_ERROR) {
+                        _listenerSocket.close();
+                    }
+                    
+                    _socketResult = responseResult(kind, _line, _lineLength);
+                    _socketResponseReceived = true;
+                    _socketCommandReceived = true;
+                    signalSender();
+                }
+            }
+            
+            /**
+             * Wakes the thread waiting in <code>sendCommand()</code>.
+             */
+            private void signalSender() {
+                synchronized (_socketLock) {
+                    _socketLock.notifyAll();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Sends the queued commands over a connection of the shared
+     * <code>PJLinkSelectorEngine</code>, following the same rules as
+     * <code>PJLinkSocket</code>: commands are drained as one batch per
+     * session, each sent once the previous one is answered, and the
+     * session is kept open only when it is persistent.
+     * <p>
+     * Has no thread of its own. Apart from <code>commandQueued()</code>
+     * and <code>shutdown()</code>, every method runs on the engine thread.
+     */
+    private class PJLinkSelectorSession implements PJLinkSelectorEngine.Handler {
+        // Session states.
+        private static final int STATE_CLOSED     = 0;
+        private static final int STATE_CONNECTING = 1;    // Waiting for the connection and greeting.
+        private static final int STATE_IDLE       = 2;    // Persistent session open, nothing in flight.
+        private static final int STATE_WAITING    = 3;    // Waiting for a response.
+        
+        private int _state = STATE_CLOSED;
+        private PJLinkSelectorEngine.Connection _connection;
+        
+        private PJLinkCommand _command;                 // Command in flight.
+        private boolean _commandReusedSession = false;  // _command went out on a session left open by an earlier batch.
+        private byte[] _digest;                         // Prefixes commands in an authenticated session.
+        
+        // Address the open session is connected to.
+        private String _sessionIPAddress = "";
+        private int _sessionPort = 0;
+        
+        private Runnable _sendNext = new Runnable() {
+            public void run() {
+                sendNext();
+            }
+        };
+        
+        /**
+         * Called from any thread when commands are waiting in the queue.
+         */
+        public void commandQueued() {
+            _selectorEngine.execute(_sendNext);
+        }
+        
+        /**
+         * Called from any thread when another engine is selected.
+         */
+        public void shutdown() {
+            if (_selectorEngine == null) return;
+            
+            _selectorEngine.execute(new Runnable() {
+                public void run() {
+                    closeSession();
+                    if (_command != null) _command.complete(PJLinkCompletion.RESULT_TIMEOUT);
+                    _command = null;
+                }
+            });
+        }
+        
+        /**
+         * Starts the next queued command unless one is already in flight.
+         */
+        private void sendNext() {
+            if (_state == STATE_CONNECTING || _state == STATE_WAITING) return;
+            
+            if (_state == STATE_IDLE && isSessionReusable() == false) closeSession();
+            
+            _command = nextCommand();
+            if (_command == null) return;
+            
+            if (_state == STATE_IDLE) {
+                _commandReusedSession = true;
+                write();
+            }
+            else {
+                open();
+            }
+        }
+        
+        /**
+         * @return The open session may carry another command.
+         */
+        private boolean isSessionReusable() {
+            return  _connectPerCommandFallback == false &&
+                    _sessionIPAddress.equals(_ipAddress) &&
+                    _sessionPort == _TCPPort;
+        }
+        
+        /**
+         * @return The next queued command for this engine, or <code>null</code>.
+         */
+        private PJLinkCommand nextCommand() {
+            if (_ioEngine != IO_ENGINE_SELECTOR) return null;
+            
+            PJLinkCommand command = _pjlinkQueue.poll();
+            
+            // Commands can't be sent without an address.
+            while (command != null && _ipAddress.length() == 0) {
+                command.complete(PJLinkCompletion.RESULT_REJECTED);
+                command = _pjlinkQueue.poll();
+            }
+            
+            return command;
+        }
+        
+        private void open() {
+            _commandReusedSession = false;
+            _digest = null;
+            _sessionIPAddress = _ipAddress;
+            _sessionPort = _TCPPort;
+            
+            // A connection that can't be made is reported to closed()
+            // later, which fails the command like any connection error.
+            _connection = _selectorEngine.connect(_ipAddress, _TCPPort, this);
+            _state = STATE_CONNECTING;
+            _connection.setDeadline(COMMAND_TIMEOUT);
+        }
+        
+        private void closeSession() {
+            if (_connection != null) _connection.close();
+            _connection = null;
+            _state = STATE_CLOSED;
+        }
+        
+        private void write() {
+            if (_printDebug == true) {
+                System.out.println("Executing command: " + _command.getCommand());
+                System.out.flush();
+            }
+            
+            _state = STATE_WAITING;
+            _connection.setDeadline(COMMAND_TIMEOUT);
+            _responseHandler.setCommand(_command);
+            
+            if (_digest != null) _connection.write(_digest);
+            _connection.write(_command.getBytes());
+            _connection.flush();
+        }
+        
+        /**
+         * The command in flight was answered. Sends the next one on the
+         * same session, or ends the batch.
+         * @param result What the answer said, for the command's completion.
+         */
+        private void commandCompleted(int result) {
+            if (_command != null) _command.complete(result);
+            _command = null;
+            
+            if (_state != STATE_WAITING) {
+                sendNext();
+                return;
+            }
+            
+            _state = STATE_IDLE;
+            _connection.setDeadline(0);
+            _circuitBreaker.commandSucceeded();
+            
+            if (isSessionReusable() == false) {
+                closeSession();
+                sendNext();
+                return;
+            }
+            
+            _command = nextCommand();
+            
+            if (_command != null) {
+                _commandReusedSession = false;
+                write();
+            }
+            else if (usePersistentSession() == false) {
+                closeSession();
+            }
+        }
+        
+        /**
+         * Reports a failed command the same way the blocking engine does.
+         */
+        private void commandFailed() {
+            if (_command != null) _command.complete(PJLinkCompletion.RESULT_TIMEOUT);
+            _command = null;
+            _circuitBreaker.commandFailed();
+            
+            _connectionError = true;
+            notifyTransient(new PJLinkEvent(PJLinkEvent.EVENT_ERROR, PJLink.ERROR_CONNECTION));
+            
+            _connectionError = false;
+            notifyTransient(new PJLinkEvent(PJLinkEvent.EVENT_ERROR, PJLink.ERROR_CONNECTION));
+            
+            sendNext();
+        }
+        
+        public void connected(PJLinkSelectorEngine.Connection connection) {
+            // Nothing to send until the projector's greeting arrives.
+        }
+        
+        public void lineReceived(PJLinkSelectorEngine.Connection connection, byte[] line, int length) {
+            if (connection != _connection) return;
+            
+            if (_printDebug == true) {
+                System.out.println("PJLink received: " + new String(line, 0, length));
+                System.out.flush();
+            }
+            
+            int kind = applyResponse(line, length);
+            
+            if (_state == STATE_CONNECTING) {
+                // Projector greeting, no authentication.
+                if (kind == PJLinkResponseParser.LINE_GREETING) {
+                    _digest = null;
+                    write();
+                    return;
+                }
+                
+                // Projector greeting, authentication challenge.
+                else if (kind == PJLinkResponseParser.LINE_GREETING_AUTH) {
+                    try {
+                        _digest = authDigest(PJLinkResponseParser.greetingKey(line, length));
+                    }
+                    catch (IOException ex) {
+                        closeSession();
+                        commandFailed();
+                        return;
+                    }
                     
+                    write();
+                    return;
                 }
             }
+            
+            // PJLink data response.
+            if (kind == PJLinkResponseParser.LINE_AUTH_ERROR) closeSession();
+            
+            if (_state == STATE_WAITING && _commandReusedSession == true) _sessionReuseFailures = 0;
+            
+            commandCompleted(responseResult(kind, line, length));
+        }
+        
+        public void closed(PJLinkSelectorEngine.Connection connection) {
+            if (connection != _connection) return;
+            
+            int state = _state;
+            _connection = null;
+            _state = STATE_CLOSED;
+            
+            if (state == STATE_WAITING && _commandReusedSession == true) {
+                // The projector closed the session before answering,
+                // most likely on its idle timeout. Retry once on a
+                // new connection.
+                sessionReuseFailed();
+                open();
+            }
+            else if (state == STATE_CONNECTING || state == STATE_WAITING) {
+                if (_printDebug == true) System.out.println("PJLink connection error. " + _ipAddress);
+                commandFailed();
+            }
+        }
+        
+        public void deadlineExpired(PJLinkSelectorEngine.Connection connection) {
+            if (connection != _connection) return;
+            
+            if (_printDebug == true) System.out.println("PJLink connection timed out. " + _ipAddress);
+            
+            closeSession();
+            commandFailed();
         }
     }
     
     private class PJLinkCommand {
         private String _command = "";
+        private byte[] _bytes;
+        private int _priority = PRIORITY_CONTROL;
+        private PJLinkCompletion[] _completions;    // Told the outcome, null if none.
         
         public PJLinkCommand() {
         }
         
+        /**
+         * Queries get <code>PRIORITY_QUERY</code>, other commands <code>PRIORITY_CONTROL</code>.
+         * @param command
+         */
         public PJLinkCommand(String command) {
             _command = command;
+            _priority = (isQuery() == true) ? PRIORITY_QUERY : PRIORITY_CONTROL;
         }
         
-        public void execute() {
-            if (_command.length() == 0) return;
-            if (_ipAddress.length() == 0) return;
+        public PJLinkCommand(String command, int priority) {
+            _command = command;
+            _priority = priority;
+        }
+        
+        /**
+         * @return The command as ASCII, with its terminator, ready to write.
+         */
+        public byte[] getBytes() {
+            if (_bytes == null) {
+                _bytes = new byte[_command.length() + 1];
+                for (int i = 0; i < _command.length(); i++) _bytes[i] = (byte) _command.charAt(i);
+                _bytes[_command.length()] = '\r';
+            }
             
-            if (_printDebug == true) {
-                System.out.println("Executing command: " + _command);
-                System.out.flush();
+            return _bytes;
+        }
+        
+        public int getPriority() {
+            return _priority;
+        }
+        
+        public void addCompletion(PJLinkCompletion completion) {
+            if (_completions == null) {
+                _completions = new PJLinkCompletion[] {completion};
+                return;
             }
             
-            _pjlinkSocket.sendCommand(_command);
+            PJLinkCompletion[] completions = new PJLinkCompletion[_completions.length + 1];
+            System.arraycopy(_completions, 0, completions, 0, _completions.length);
+            completions[_completions.length] = completion;
+            _completions = completions;
+        }
+        
+        /**
+         * Takes over the completions of <code>command</code>, which is
+         * being coalesced into this one.
+         */
+        public void merge(PJLinkCommand command) {
+            if (command._completions == null) return;
+            
+            for (int i = 0; i < command._completions.length; i++) addCompletion(command._completions[i]);
+            command._completions = null;
+        }
+        
+        /**
+         * Reports the command's outcome to its completions, once.
+         * @param result One of the <code>PJLinkCompletion.RESULT_</code> constants.
+         */
+        public void complete(int result) {
+            PJLinkCompletion[] completions = _completions;
+            _completions = null;
+            
+            if (completions == null) return;
+            
+            for (int i = 0; i < completions.length; i++) completions[i].commandCompleted(result);
+        }
+        
+        public void setPriority(int priority) {
+            _priority = priority;
+        }
+        
+        public String getCommand() {
+            return _command;
+        }
+        
+        /**
+         * @return Class and command code, such as <code>%1POWR</code>.
+         */
+        public String getCode() {
+            return (_command.length() < 6) ? _command : _command.substring(0, 6);
+        }
+        
+        /**
+         * @return What a control command sets, for coalescing: its code,
+         *         plus for A/V mute the digit that picks audio, video or both.
+         */
+        public String getTarget() {
+            if (getCode().endsWith("AVMT") == true && _command.length() > 7) return _command.substring(0, 8);
+            return getCode();
+        }
+        
+        /**
+         * @return The command only reads the projector's state.
+         */
+        public boolean isQuery() {
+            return _command.endsWith(" ?");
         }
     }
 }
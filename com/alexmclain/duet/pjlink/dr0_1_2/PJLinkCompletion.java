@@ -0,0 +1,157 @@
+package com.alexmclain.duet.pjlink.dr0_1_2;
+
+import java.util.ArrayList;
+
+/**
+ * Outcome of a command sent by <code>PJLink</code>. Commands return
+ * straight away with a completion, which resolves once the projector
+ * has answered. It can be waited on with <code>waitFor()</code>, or
+ * report to a <code>PJLinkCompletionListener</code>, so the next
+ * command can follow as soon as this one is done.
+ * <p>
+ * A completion covering several commands, like the one returned by
+ * <code>queryAll()</code>, resolves with the first command that fails,
+ * or with <code>RESULT_OK</code> once all of them succeeded.
+ */
+public class PJLinkCompletion {
+    
+    public static final int RESULT_PENDING              = -1;
+    public static final int RESULT_OK                   = 0;
+    public static final int RESULT_UNDEFINED_COMMAND    = 1;    // ERR1
+    public static final int RESULT_OUT_OF_PARAMETER     = 2;    // ERR2
+    public static final int RESULT_UNAVAILABLE_TIME     = 3;    // ERR3
+    public static final int RESULT_PROJECTOR_FAILURE    = 4;    // ERR4
+    public static final int RESULT_AUTHENTICATION_ERROR = 5;    // ERRA
+    public static final int RESULT_TIMEOUT              = 6;    // No response: the connection failed, closed or timed out.
+    public static final int RESULT_REJECTED             = 7;    // Never sent: the queue was full or the projector is unreachable.
+    
+    private int _result = RESULT_PENDING;
+    private int _remaining;         // Commands still to be answered.
+    
+    private long _startTime = System.currentTimeMillis();
+    private long _endTime = 0;
+    
+    private ArrayList _listeners = new ArrayList();
+    
+    /**
+     * @param commands Number of commands covered. With none, the
+     *        completion is resolved with <code>RESULT_OK</code>.
+     */
+    PJLinkCompletion(int commands) {
+        _remaining = commands;
+        if (_remaining < 1) resolve(RESULT_OK);
+    }
+    
+    /**
+     * @return A completion already resolved with <code>result</code>.
+     */
+    static PJLinkCompletion resolved(int result) {
+        PJLinkCompletion completion = new PJLinkCompletion(1);
+        completion.resolve(result);
+        return completion;
+    }
+    
+    /**
+     * @return One of the <code>RESULT_</code> constants,
+     *         <code>RESULT_PENDING</code> until resolved.
+     */
+    public synchronized int getResult() {
+        return _result;
+    }
+    
+    public synchronized boolean isDone() {
+        return _result != RESULT_PENDING;
+    }
+    
+    /**
+     * @return Milliseconds from the command being queued to being
+     *         resolved, or so far if it is still pending.
+     */
+    public synchronized long getElapsedTime() {
+        return ((_endTime > 0) ? _endTime : System.currentTimeMillis()) - _startTime;
+    }
+    
+    /**
+     * Waits until the completion is resolved.
+     * @param timeout Longest time to wait, in milliseconds.
+     * @return The result, or <code>RESULT_PENDING</code> if
+     *         <code>timeout</code> passed first.
+     */
+    public synchronized int waitFor(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        
+        while (_result == RESULT_PENDING) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining < 1) break;
+            
+            wait(remaining);
+        }
+        
+        return _result;
+    }
+    
+    /**
+     * Calls <code>listener</code> once the completion is resolved, or
+     * right away on this thread if it already is. Otherwise it is called
+     * on the thread that resolved it: usually the one that talks to the
+     * projector, or the caller's thread for a command that was rejected.
+     * That thread serves other commands too, so the listener must not
+     * block or wait for another completion. It runs without the command
+     * queue's lock, so it may queue further commands.
+     * @param listener
+     */
+    public void addListener(PJLinkCompletionListener listener) {
+        synchronized (this) {
+            if (_result == RESULT_PENDING) {
+                _listeners.add(listener);
+                return;
+            }
+        }
+        
+        callListener(listener);
+    }
+    
+    /**
+     * Reports the outcome of one of the commands covered.
+     * @param result
+     */
+    void commandCompleted(int result) {
+        synchronized (this) {
+            if (_result != RESULT_PENDING) return;
+            
+            _remaining--;
+            if (result == RESULT_OK && _remaining > 0) return;
+        }
+        
+        resolve(result);
+    }
+    
+    private void resolve(int result) {
+        Object[] listeners;
+        
+        synchronized (this) {
+            if (_result != RESULT_PENDING) return;
+            
+            _result = result;
+            _endTime = System.currentTimeMillis();
+            notifyAll();
+            
+            listeners = _listeners.toArray();
+            _listeners.clear();
+        }
+        
+        for (int i = 0; i < listeners.length; i++) {
+            callListener((PJLinkCompletionListener) listeners[i]);
+        }
+    }
+    
+    private void callListener(PJLinkCompletionListener listener) {
+        try {
+            listener.commandCompleted(this);
+        }
+        catch (RuntimeException ex) {
+            // The listener runs on a thread that other commands depend on.
+            System.out.println("PJLink completion listener failed: " + ex);
+        }
+    }
+}
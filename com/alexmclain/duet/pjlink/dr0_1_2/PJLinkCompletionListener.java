@@ -0,0 +1,5 @@
+package com.alexmclain.duet.pjlink.dr0_1_2;
+
+public interface PJLinkCompletionListener {
+    public void commandCompleted(PJLinkCompletion completion);
+}
@@ -0,0 +1,112 @@
+package com.alexmclain.duet.pjlink.dr0_1_2;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Finds the PJLink Class 2 projectors on the local network. A single
+ * <code>%2SRCH</code> broadcast is sent, and every projector that
+ * replies with <code>%2ACKN=&lt;MAC address&gt;</code> within the search
+ * window is listed, so a whole building can be inventoried at once
+ * rather than setting up each projector by hand.
+ * <p>
+ * The search is sent from the socket of <code>PJLinkNotificationReceiver</code>,
+ * which receives the replies.
+ */
+public class PJLinkDiscovery {
+    
+    public static final String BROADCAST_ADDRESS = "255.255.255.255";
+    
+    private static final byte[] SEARCH = {'%', '2', 'S', 'R', 'C', 'H', '\r'};
+    
+    private PJLinkDiscovery() {
+    }
+    
+    /**
+     * Searches the local network, waiting <code>window</code>
+     * milliseconds for the replies.
+     * @param window
+     * @return The projectors that replied, in the order they replied.
+     */
+    public static Projector[] search(long window) throws IOException, InterruptedException {
+        return search(BROADCAST_ADDRESS, window);
+    }
+    
+    /**
+     * Searches the network reached by <code>broadcastAddress</code>,
+     * waiting <code>window</code> milliseconds for the replies.
+     * @param broadcastAddress
+     * @param window
+     * @return The projectors that replied, in the order they replied.
+     */
+    public static Projector[] search(String broadcastAddress, long window) throws IOException, InterruptedException {
+        PJLinkNotificationReceiver receiver = PJLinkNotificationReceiver.getInstance();
+        
+        final ArrayList found = new ArrayList();
+        final HashSet addresses = new HashSet();
+        
+        PJLinkNotificationReceiver.SearchListener listener = new PJLinkNotificationReceiver.SearchListener() {
+            public void searchReplyReceived(String ipAddress, String macAddress) {
+                synchronized (found) {
+                    // A projector may answer more than once.
+                    if (addresses.add(ipAddress) == true) found.add(new Projector(ipAddress, macAddress));
+                }
+            }
+        };
+        
+        receiver.addSearchListener(listener);
+        
+        try {
+            receiver.send(SEARCH, InetAddress.getByName(broadcastAddress), PJLinkNotificationReceiver.NOTIFICATION_PORT);
+            Thread.sleep(window);
+        }
+        finally {
+            receiver.removeSearchListener(listener);
+        }
+        
+        synchronized (found) {
+            return (Projector[]) found.toArray(new Projector[found.size()]);
+        }
+    }
+    
+    /**
+     * Creates a <code>PJLink</code> instance for each projector found.
+     * @param projectors
+     * @return Instances in the same order as <code>projectors</code>.
+     */
+    public static PJLink[] createInstances(Projector[] projectors) {
+        PJLink[] instances = new PJLink[projectors.length];
+        
+        for (int i = 0; i < projectors.length; i++) {
+            instances[i] = new PJLink(projectors[i].getIPAddress());
+        }
+        
+        return instances;
+    }
+    
+    /**
+     * A projector that replied to a search.
+     */
+    public static class Projector {
+        private String _ipAddress;
+        private String _macAddress;
+        
+        private Projector(String ipAddress, String macAddress) {
+            _ipAddress = ipAddress;
+            _macAddress = macAddress;
+        }
+        
+        public String getIPAddress() {
+            return _ipAddress;
+        }
+        
+        /**
+         * @return MAC address as the projector reported it, like <code>00:11:22:33:44:55</code>.
+         */
+        public String getMACAddress() {
+            return _macAddress;
+        }
+    }
+}
@@ -11,6 +11,7 @@ public class PJLinkEvent {
     private int _eventType;
     private int _data;
     private String _message = "";
+    private PJLinkState _state;
     
     public PJLinkEvent(int eventType, int data) {
         _eventType = eventType;
@@ -34,4 +35,16 @@ public class PJLinkEvent {
     public String getEventMessage() {
         return _message;
     }
+    
+    /**
+     * @return The projector's state when the event was raised, or
+     *         <code>null</code> if it didn't come from a <code>PJLink</code>.
+     */
+    public PJLinkState getState() {
+        return _state;
+    }
+    
+    void setState(PJLinkState state) {
+        _state = state;
+    }
 }
@@ -0,0 +1,260 @@
+package com.alexmclain.duet.pjlink.dr0_1_2;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Owns the <code>PJLink</code> instances of a site with many projectors.
+ * Every projector of a fleet uses the selector I/O engine, so the whole
+ * fleet shares one I/O thread, the poll timer of <code>PJLinkPollScheduler</code>
+ * and the deadlines of <code>PJLinkTimeoutWheel</code>. Adding a projector
+ * adds no threads, only its state and command queue.
+ * <p>
+ * Listeners added to the fleet receive the events of every projector,
+ * including those added later.
+ */
+public class PJLinkFleet {
+    
+    private HashMap _projectorsByAddress = new HashMap();
+    
+    // Replaced, never modified, so it can be read without a lock.
+    private volatile PJLink[] _projectors = new PJLink[0];
+    private volatile PJLinkListener[] _listeners = new PJLinkListener[0];
+    
+    private String _password = "";
+    private boolean _persistentSession = false;
+    private boolean _disposed = false;
+    
+    public PJLinkFleet() {
+    }
+    
+    /**
+     * Adds the projector at <code>ipAddress</code> on the default PJLink port.
+     * @param ipAddress
+     * @return The projector's instance, or its existing one if it is already in the fleet.
+     */
+    public PJLink add(String ipAddress) {
+        return add(ipAddress, 4352);
+    }
+    
+    /**
+     * Adds the projector at <code>ipAddress</code> and <code>port</code>.
+     * It starts polling right away.
+     * @param ipAddress
+     * @param port
+     * @return The projector's instance, or its existing one if it is already in the fleet.
+     * @throws IllegalStateException The fleet was disposed of.
+     */
+    public synchronized PJLink add(String ipAddress, int port) {
+        if (_disposed == true) throw new IllegalStateException("PJLink fleet disposed.");
+        
+        String key = key(ipAddress, port);
+        PJLink projector = (PJLink) _projectorsByAddress.get(key);
+        if (projector != null) return projector;
+        
+        projector = new PJLink();
+        projector.setPort(port);
+        projector.setPassword(_password);
+        projector.setPersistentSession(_persistentSession);
+        projector.setIOEngine(PJLink.IO_ENGINE_SELECTOR);
+        
+        PJLinkListener[] listeners = _listeners;
+        for (int i = 0; i < listeners.length; i++) projector.addListener(listeners[i]);
+        
+        projector.setIPAddress(ipAddress);
+        
+        _projectorsByAddress.put(key, projector);
+        
+        PJLink[] projectors = new PJLink[_projectors.length + 1];
+        System.arraycopy(_projectors, 0, projectors, 0, _projectors.length);
+        projectors[_projectors.length] = projector;
+        _projectors = projectors;
+        
+        return projector;
+    }
+    
+    /**
+     * Removes a projector from the fleet and disposes of its instance.
+     * @param projector
+     * @return <code>false</code> if it wasn't in the fleet.
+     */
+    public boolean remove(PJLink projector) {
+        synchronized (this) {
+            // By instance, in case its address was changed since it was added.
+            if (_projectorsByAddress.containsValue(projector) == false) return false;
+            
+            Iterator values = _projectorsByAddress.values().iterator();
+            while (values.hasNext()) {
+                if (values.next() == projector) values.remove();
+            }
+            
+            PJLink[] projectors = _projectors;
+            
+            for (int i = 0; i < projectors.length; i++) {
+                if (projectors[i] != projector) continue;
+                
+                PJLink[] newProjectors = new PJLink[projectors.length - 1];
+                System.arraycopy(projectors, 0, newProjectors, 0, i);
+                System.arraycopy(projectors, i + 1, newProjectors, i, projectors.length - i - 1);
+                _projectors = newProjectors;
+                break;
+            }
+        }
+        
+        projector.dispose();
+        return true;
+    }
+    
+    /**
+     * @return The projector at <code>ipAddress</code> on the default port, or <code>null</code>.
+     */
+    public PJLink get(String ipAddress) {
+        return get(ipAddress, 4352);
+    }
+    
+    public synchronized PJLink get(String ipAddress, int port) {
+        return (PJLink) _projectorsByAddress.get(key(ipAddress, port));
+    }
+    
+    /**
+     * @return Every projector in the fleet, in the order they were added.
+     */
+    public PJLink[] getProjectors() {
+        return _projectors;
+    }
+    
+    public int size() {
+        return _projectors.length;
+    }
+    
+    /**
+     * Adds a listener to every projector in the fleet, now and in the future.
+     * @param listener
+     */
+    public void addListener(PJLinkListener listener) {
+        synchronized (this) {
+            PJLinkListener[] listeners = new PJLinkListener[_listeners.length + 1];
+            System.arraycopy(_listeners, 0, listeners, 0, _listeners.length);
+            listeners[_listeners.length] = listener;
+            _listeners = listeners;
+        }
+        
+        PJLink[] projectors = _projectors;
+        for (int i = 0; i < projectors.length; i++) projectors[i].addListener(listener);
+    }
+    
+    public void removeListener(PJLinkListener listener) {
+        synchronized (this) {
+            PJLinkListener[] listeners = _listeners;
+            
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i] != listener) continue;
+                
+                PJLinkListener[] newListeners = new PJLinkListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, newListeners, 0, i);
+                System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+                _listeners = newListeners;
+                break;
+            }
+        }
+        
+        PJLink[] projectors = _projectors;
+        for (int i = 0; i < projectors.length; i++) projectors[i].removeListener(listener);
+    }
+    
+    /**
+     * Sets the password used by projectors added from now on.
+     * @param password
+     */
+    public synchronized void setPassword(String password) {
+        _password = password;
+    }
+    
+    /**
+     * Sets whether projectors added from now on keep their connection open.
+     * @param value
+     */
+    public synchronized void setPersistentSession(boolean value) {
+        _persistentSession = value;
+    }
+    
+    /**
+     * Sends <code>command</code> to every projector in the fleet, in parallel.
+     * @param command Such as <code>PJLinkGroupCommand.POWER_OFF</code>.
+     * @param maxConcurrent Most commands outstanding at once.
+     * @return The group command, to wait on and read the results from.
+     */
+    public PJLinkGroupCommand send(PJLinkGroupCommand.Command command, int maxConcurrent) {
+        return PJLinkGroupCommand.send(_projectors, command, maxConcurrent);
+    }
+    
+    /**
+     * @param powerState One of the <code>PJLink.POWER_</code> states.
+     * @return Number of projectors last known to be in <code>powerState</code>.
+     */
+    public int countPowerState(int powerState) {
+        PJLink[] projectors = _projectors;
+        int count = 0;
+        
+        for (int i = 0; i < projectors.length; i++) {
+            if (projectors[i].getState().getPowerState() == powerState) count++;
+        }
+        
+        return count;
+    }
+    
+    /**
+     * @return Number of projectors that can't be reached.
+     */
+    public int countConnectionErrors() {
+        PJLink[] projectors = _projectors;
+        int count = 0;
+        
+        for (int i = 0; i < projectors.length; i++) {
+            if (projectors[i].getConnectionError() == true) count++;
+        }
+        
+        return count;
+    }
+    
+    /**
+     * @return Number of projectors reporting a warning or error for
+     *         their fan, lamp, temperature, cover, filter or other.
+     */
+    public int countErrors() {
+        PJLink[] projectors = _projectors;
+        int count = 0;
+        
+        for (int i = 0; i < projectors.length; i++) {
+            if (projectors[i].getState().getErrorStatus() != 0) count++;
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Disposes of every projector in the fleet. Nothing can be added afterwards.
+     */
+    public void dispose() {
+        PJLink[] projectors;
+        
+        synchronized (this) {
+            if (_disposed == true) return;
+            
+            _disposed = true;
+            projectors = _projectors;
+            _projectors = new PJLink[0];
+            _projectorsByAddress.clear();
+        }
+        
+        for (int i = 0; i < projectors.length; i++) projectors[i].dispose();
+    }
+    
+    public synchronized boolean isDisposed() {
+        return _disposed;
+    }
+    
+    private static String key(String ipAddress, int port) {
+        return ipAddress + ":" + port;
+    }
+}
@@ -0,0 +1,249 @@
+package com.alexmclain.duet.pjlink.dr0_1_2;
+
+/**
+ * Sends one command to a group of projectors in parallel, such as
+ * switching off every projector on a floor, and reports the result for
+ * each projector. At most <code>maxConcurrent</code> commands are
+ * outstanding at once; each one that completes lets the next projector's
+ * command go out. The commands are sent by a thread of the group's own,
+ * which exits once the last one is sent. With the selector I/O engine,
+ * that is the only thread a group of any size adds.
+ * <p>
+ * <code>send()</code> returns straight away. Wait for the group with
+ * <code>waitFor()</code>, then read the results.
+ */
+public class PJLinkGroupCommand {
+    
+    // Commands outstanding at once, unless another limit is given.
+    public static final int DEFAULT_MAX_CONCURRENT = 32;
+    
+    /**
+     * A command that can be sent to a group.
+     */
+    public interface Command {
+        public PJLinkCompletion send(PJLink projector);
+    }
+    
+    public static final Command POWER_ON = new Command() {
+        public PJLinkCompletion send(PJLink projector) {
+            return projector.powerOn();
+        }
+    };
+    
+    public static final Command POWER_OFF = new Command() {
+        public PJLinkCompletion send(PJLink projector) {
+            return projector.powerOff();
+        }
+    };
+    
+    public static final Command MUTE_AUDIO = new Command() {
+        public PJLinkCompletion send(PJLink projector) {
+            return projector.muteAudio();
+        }
+    };
+    
+    public static final Command UNMUTE_AUDIO = new Command() {
+        public PJLinkCompletion send(PJLink projector) {
+            return projector.unmuteAudio();
+        }
+    };
+    
+    public static final Command MUTE_VIDEO = new Command() {
+        public PJLinkCompletion send(PJLink projector) {
+            return projector.muteVideo();
+        }
+    };
+    
+    public static final Command UNMUTE_VIDEO = new Command() {
+        public PJLinkCompletion send(PJLink projector) {
+            return projector.unmuteVideo();
+        }
+    };
+    
+    public static final Command QUERY_ALL = new Command() {
+        public PJLinkCompletion send(PJLink projector) {
+            return projector.queryAll();
+        }
+    };
+    
+    private PJLink[] _projectors;
+    private Command _command;
+    private int _maxConcurrent;
+    
+    private int[] _results;
+    private long[] _elapsedTimes;
+    
+    private int _outstanding = 0;   // Commands sent and not yet completed.
+    private int _remaining;         // Projectors without a result.
+    
+    private long _startTime = System.currentTimeMillis();
+    private long _endTime = 0;
+    
+    /**
+     * Sends <code>command</code> to every projector in <code>projectors</code>,
+     * <code>DEFAULT_MAX_CONCURRENT</code> at a time.
+     * @return The group command, to wait on and read the results from.
+     */
+    public static PJLinkGroupCommand send(PJLink[] projectors, Command command) {
+        return send(projectors, command, DEFAULT_MAX_CONCURRENT);
+    }
+    
+    /**
+     * Sends <code>command</code> to every projector in <code>projectors</code>.
+     * @param projectors
+     * @param command
+     * @param maxConcurrent Most commands outstanding at once.
+     * @return The group command, to wait on and read the results from.
+     */
+    public static PJLinkGroupCommand send(PJLink[] projectors, Command command, int maxConcurrent) {
+        PJLinkGroupCommand group = new PJLinkGroupCommand(projectors, command, maxConcurrent);
+        if (group._remaining > 0) group.start();
+        return group;
+    }
+    
+    private PJLinkGroupCommand(PJLink[] projectors, Command command, int maxConcurrent) {
+        _projectors = (PJLink[]) projectors.clone();
+        _command = command;
+        _maxConcurrent = Math.max(maxConcurrent, 1);
+        
+        _results = new int[_projectors.length];
+        _elapsedTimes = new long[_projectors.length];
+        _remaining = _projectors.length;
+        
+        for (int i = 0; i < _results.length; i++) _results[i] = PJLinkCompletion.RESULT_PENDING;
+        if (_remaining == 0) _endTime = _startTime;
+    }
+    
+    /**
+     * @return The projectors of the group, in the order of the results.
+     */
+    public PJLink[] getProjectors() {
+        return (PJLink[]) _projectors.clone();
+    }
+    
+    /**
+     * @param index Position of the projector in <code>getProjectors()</code>.
+     * @return One of the <code>PJLinkCompletion.RESULT_</code> constants.
+     */
+    public synchronized int getResult(int index) {
+        return _results[index];
+    }
+    
+    /**
+     * @param index Position of the projector in <code>getProjectors()</code>.
+     * @return Milliseconds from the group being sent to the projector's
+     *         result, or 0 while it is pending.
+     */
+    public synchronized long getElapsedTime(int index) {
+        return _elapsedTimes[index];
+    }
+    
+    /**
+     * @return Milliseconds from the group being sent to the last result,
+     *         or so far if results are still pending.
+     */
+    public synchronized long getElapsedTime() {
+        return ((_endTime > 0) ? _endTime : System.currentTimeMillis()) - _startTime;
+    }
+    
+    /**
+     * @param result One of the <code>PJLinkCompletion.RESULT_</code> constants.
+     * @return Number of projectors with that result.
+     */
+    public synchronized int countResult(int result) {
+        int count = 0;
+        
+        for (int i = 0; i < _results.length; i++) {
+            if (_results[i] == result) count++;
+        }
+        
+        return count;
+    }
+    
+    public synchronized boolean isDone() {
+        return _remaining == 0;
+    }
+    
+    /**
+     * Waits until every projector has a result.
+     * @param timeout Longest time to wait, in milliseconds.
+     * @return <code>false</code> if <code>timeout</code> passed first.
+     */
+    public synchronized boolean waitFor(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        
+        while (_remaining > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining < 1) break;
+            
+            wait(remaining);
+        }
+        
+        return _remaining == 0;
+    }
+    
+    /**
+     * Starts the thread that sends the command.
+     */
+    private void start() {
+        Thread senderThread = new Thread(new Runnable() {
+            public void run() {
+                sendAll();
+            }
+        }, "PJLinkGroupCommand");
+        
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+    
+    /**
+     * Sends the command to each projector in turn, waiting while
+     * <code>maxConcurrent</code> are outstanding. A completion only frees
+     * its slot: sending from its listener would run one projector's
+     * command inside another projector's callback, under its locks.
+     */
+    private void sendAll() {
+        for (int i = 0; i < _projectors.length; i++) {
+            final int index = i;
+            
+            synchronized (this) {
+                while (_outstanding >= _maxConcurrent) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                
+                _outstanding++;
+            }
+            
+            PJLinkCompletion completion;
+            
+            try {
+                completion = _command.send(_projectors[index]);
+            }
+            catch (RuntimeException ex) {
+                completion = PJLinkCompletion.resolved(PJLinkCompletion.RESULT_REJECTED);
+            }
+            
+            completion.addListener(new PJLinkCompletionListener() {
+                public void commandCompleted(PJLinkCompletion completion) {
+                    projectorCompleted(index, completion.getResult());
+                }
+            });
+        }
+    }
+    
+    private synchronized void projectorCompleted(int index, int result) {
+        _results[index] = result;
+        _elapsedTimes[index] = System.currentTimeMillis() - _startTime;
+        _outstanding--;
+        _remaining--;
+        
+        if (_remaining == 0) _endTime = System.currentTimeMillis();
+        
+        notifyAll();    // Wakes the sender, and waitFor() once every result is in.
+    }
+}
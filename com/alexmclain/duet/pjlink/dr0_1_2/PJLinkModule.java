@@ -48,7 +48,7 @@ import com.amx.duet.util.Timer;
  *      311-359 Correspond to PJLink "INPT" values 11-59.
  * 
  *      // Errors And Warnings (Feedback Only)
- *      499 Connection Error    
+ *      499 Connection Error - Stays on while the projector is unreachable and commands are suspended.
  * 
  *      500 Fan Warning
  *      501 Fan Error
@@ -71,12 +71,36 @@ import com.amx.duet.util.Timer;
  *      IPADDR              - Set IP address.
  *      DEBUG               - Print debug info to console.
  *      DISABLE_POLLING     - Disable polling the projector periodically for its state.
- *      REFRESH_INTERVAL    - Set how frequently the projector's state is polled.
+ *      REFRESH_INTERVAL    - Set how frequently the projector's state is polled while it is on, in seconds.
+ *      REFRESH_INTERVAL_OFF, REFRESH_INTERVAL_WARMING, REFRESH_INTERVAL_COOLING
+ *                          - Same, while the projector is off, warming or cooling.
+ *      PERSISTENT_SESSION  - Keep the connection to the projector open between commands.
+ *      IO_ENGINE           - BLOCKING (default) or SELECTOR, see PJLink.setIOEngine().
+ *      ALWAYS_NOTIFY       - Update feedback on every poll, not only when the projector's state changes.
+ *      ASYNC_DISPATCH      - Update feedback on a dispatch thread, so it can't hold up the connection.
+ *      DISCOVER            - Search the network for Class 2 projectors for the given number of seconds (default 5).
+ *                            Replies DISCOVERED-<ip>,<mac> for each one found, then DISCOVERED-END,<count>.
+ *      NOTIFICATIONS       - Accept Class 2 status notifications over UDP and poll only as a safety net.
+ *      QUEUE_CAPACITY      - Set how many commands can wait to be sent (default 32).
+ *      QUEUE_OVERFLOW      - DROP_OLDEST_POLL (default), REJECT or COALESCE, see PJLink.setQueueOverflowPolicy().
  *      
  *      ?CONN               - Query connection status.
+ *      ?CIRCUIT            - Query the circuit breaker: CLOSED, OPEN (projector unreachable) or HALF_OPEN (probing).
  *      ?DEBUG 
  *      ?DISABLE_QUERY
  *      ?REFRESH_INTERVAL
+ *      ?REFRESH_INTERVAL_OFF, ?REFRESH_INTERVAL_WARMING, ?REFRESH_INTERVAL_COOLING
+ *      ?PERSISTENT_SESSION
+ *      ?IO_ENGINE
+ *      ?ALWAYS_NOTIFY
+ *      ?ASYNC_DISPATCH
+ *      ?DISPATCH_STATS     - Query queue depth, max depth, lag (ms), max lag (ms) and dropped events.
+ *      ?NOTIFICATIONS
+ *      ?PROJECTOR_CLASS    - Query the PJLink class the projector reported, 0 if unknown.
+ *      ?QUEUE_CAPACITY
+ *      ?QUEUE_OVERFLOW
+ *      ?QUEUE_STATS        - Query queue depth, commands dropped, commands rejected and queries coalesced.
+ *      ?SUPPRESSED_WRITES  - Query how many channel updates were skipped because the channel was already in that state.
  * 
  ***********************************************************************
  *  Copyright 2012, 2013, 2015 Alex McLain
@@ -186,6 +210,18 @@ public class PJLinkModule extends Utility implements PJLinkListener{
     
     private NetLinxDevice dvDuet;
     private PJLink _pjLink;
+    
+    // Feedback last sent for each channel, one bit per channel, so
+    // events only write the channels whose state actually changed.
+    private int[] _channelState = new int[CHANNEL_WORDS];
+    private int[] _channelKnown = new int[CHANNEL_WORDS];   // Bit set once the channel's state is known.
+    private long _suppressedChannelWrites = 0;
+    
+    private static final int CHANNEL_COUNT = 512;
+    private static final int CHANNEL_WORDS = (CHANNEL_COUNT >> 5) + 1;
+    
+    // Milliseconds DISCOVER waits for replies by default.
+    private static final long DISCOVERY_WINDOW = 5000;
 
     public PJLinkModule() {
         super();
@@ -201,7 +237,7 @@ public class PJLinkModule extends Utility implements PJLinkListener{
     }
 
     protected boolean doNetLinxDeviceInitialization() {
-        this.getNetLinxDevice().setChannelCount(512);
+        this.getNetLinxDevice().setChannelCount(CHANNEL_COUNT);
         _pjLink = new PJLink();
         _pjLink.addListener(this);
         
@@ -234,10 +270,14 @@ public class PJLinkModule extends Utility implements PJLinkListener{
     public void handleChannelEvent(Event obj, int channel, boolean on) {
         super.handleChannelEvent(obj, channel, on);
         
+        // NetLinx changed the channel behind the shadow's back.
+        forgetChannel(channel);
+        
         switch (channel) {
         
         case CHAN_TOGGLE_POWER:
             if (on) {
+                // The last known state. Reading it doesn't contact the projector.
                 int powerState = _pjLink.getPowerState();
                 if (powerState == PJLink.POWER_ON) {
                     _pjLink.powerOff();
@@ -367,6 +407,10 @@ public class PJLinkModule extends Utility implements PJLinkListener{
             System.out.println("PJLink " + _pjLink.getIPAddress() + " connection status: " + !_pjLink.getConnectionError());
         }
         
+        else if (command.toUpperCase().equals("?CIRCUIT")) {
+            dvDuet.sendCommand("CIRCUIT-" + circuitStateName(_pjLink.getCircuitState()));
+        }
+        
         else if (command.toUpperCase().equals("DEBUG")) {
             if (value.equals("1") || value.toUpperCase().equals("TRUE")) {
                 _pjLink.setPrintDebug(true);
@@ -400,6 +444,7 @@ public class PJLinkModule extends Utility implements PJLinkListener{
         else if (command.toUpperCase().equals("REFRESH_INTERVAL")) {
             try {
                 _pjLink.setRefreshInterval(Integer.parseInt(value));
+                System.out.println("Refresh interval set to " + _pjLink.getRefreshInterval() + " seconds for device " + dvDuet.getDPS().toString() + ".");
             }
             catch (NumberFormatException ex) {
                 // Don't care.
@@ -409,8 +454,288 @@ public class PJLinkModule extends Utility implements PJLinkListener{
         else if (command.toUpperCase().equals("?REFRESH_INTERVAL")) {
             dvDuet.sendCommand("REFRESH_INTERVAL-" + _pjLink.getRefreshInterval());
         }
+        
+        else if (command.toUpperCase().startsWith("REFRESH_INTERVAL_") && powerStateForName(command.substring(17)) > -1) {
+            int powerState = powerStateForName(command.substring(17));
+            
+            try {
+                _pjLink.setRefreshInterval(powerState, Integer.parseInt(value));
+                System.out.println("Refresh interval while " + command.substring(17).toLowerCase() + " set to " + _pjLink.getRefreshInterval(powerState) + " seconds for device " + dvDuet.getDPS().toString() + ".");
+            }
+            catch (NumberFormatException ex) {
+                // Don't care.
+            }
+        }
+        
+        else if (command.toUpperCase().startsWith("?REFRESH_INTERVAL_") && powerStateForName(command.substring(18)) > -1) {
+            dvDuet.sendCommand(command.substring(1).toUpperCase() + "-" + _pjLink.getRefreshInterval(powerStateForName(command.substring(18))));
+        }
+        
+        else if (command.toUpperCase().equals("PERSISTENT_SESSION")) {
+            if (value.equals("1") || value.toUpperCase().equals("TRUE")) {
+                _pjLink.setPersistentSession(true);
+                System.out.println("Persistent session enabled for device " + dvDuet.getDPS().toString() + ".");
+            }
+            else if (value.equals("0") || value.toUpperCase().equals("FALSE")) {
+                _pjLink.setPersistentSession(false);
+                System.out.println("Persistent session disabled for device " + dvDuet.getDPS().toString() + ".");
+            }
+        }
+        
+        else if (command.toUpperCase().equals("?PERSISTENT_SESSION")) {
+            dvDuet.sendCommand("PERSISTENT_SESSION-" + _pjLink.getPersistentSession());
+        }
+        
+        else if (command.toUpperCase().equals("IO_ENGINE")) {
+            if (value.toUpperCase().equals("SELECTOR")) {
+                _pjLink.setIOEngine(PJLink.IO_ENGINE_SELECTOR);
+            }
+            else if (value.toUpperCase().equals("BLOCKING")) {
+                _pjLink.setIOEngine(PJLink.IO_ENGINE_BLOCKING);
+            }
+            
+            System.out.println("PJLink I/O engine is " + ioEngineName(_pjLink.getIOEngine()) + " for device " + dvDuet.getDPS().toString() + ".");
+        }
+        
+        else if (command.toUpperCase().equals("?IO_ENGINE")) {
+            dvDuet.sendCommand("IO_ENGINE-" + ioEngineName(_pjLink.getIOEngine()));
+        }
+        
+        else if (command.toUpperCase().equals("ALWAYS_NOTIFY")) {
+            if (value.equals("1") || value.toUpperCase().equals("TRUE")) {
+                _pjLink.setAlwaysNotify(true);
+                System.out.println("Always notify enabled for device " + dvDuet.getDPS().toString() + ".");
+            }
+            else if (value.equals("0") || value.toUpperCase().equals("FALSE")) {
+                _pjLink.setAlwaysNotify(false);
+                System.out.println("Always notify disabled for device " + dvDuet.getDPS().toString() + ".");
+            }
+        }
+        
+        else if (command.toUpperCase().equals("?ALWAYS_NOTIFY")) {
+            dvDuet.sendCommand("ALWAYS_NOTIFY-" + _pjLink.getAlwaysNotify());
+        }
+        
+        else if (command.toUpperCase().equals("ASYNC_DISPATCH")) {
+            if (value.equals("1") || value.toUpperCase().equals("TRUE")) {
+                _pjLink.setAsyncDispatch(true);
+                System.out.println("Asynchronous dispatch enabled for device " + dvDuet.getDPS().toString() + ".");
+            }
+            else if (value.equals("0") || value.toUpperCase().equals("FALSE")) {
+                _pjLink.setAsyncDispatch(false);
+                System.out.println("Asynchronous dispatch disabled for device " + dvDuet.getDPS().toString() + ".");
+            }
+        }
+        
+        else if (command.toUpperCase().equals("?ASYNC_DISPATCH")) {
+            dvDuet.sendCommand("ASYNC_DISPATCH-" + _pjLink.getAsyncDispatch());
+        }
+        
+        else if (command.toUpperCase().equals("?DISPATCH_STATS")) {
+            dvDuet.sendCommand("DISPATCH_STATS-" +
+                _pjLink.getDispatchQueueDepth() + "," +
+                _pjLink.getMaxDispatchQueueDepth() + "," +
+                _pjLink.getDispatchLag() + "," +
+                _pjLink.getMaxDispatchLag() + "," +
+                _pjLink.getDroppedEventCount());
+        }
+        
+        else if (command.toUpperCase().equals("DISCOVER")) {
+            long window = DISCOVERY_WINDOW;
+            
+            try {
+                if (value.length() > 0) window = Integer.parseInt(value) * 1000L;
+            }
+            catch (NumberFormatException ex) {
+                // Don't care.
+            }
+            
+            discover(window);
+        }
+        
+        else if (command.toUpperCase().equals("NOTIFICATIONS")) {
+            if (value.equals("1") || value.toUpperCase().equals("TRUE")) {
+                _pjLink.setNotifications(true);
+                System.out.println("Status notifications enabled for device " + dvDuet.getDPS().toString() + ".");
+            }
+            else if (value.equals("0") || value.toUpperCase().equals("FALSE")) {
+                _pjLink.setNotifications(false);
+                System.out.println("Status notifications disabled for device " + dvDuet.getDPS().toString() + ".");
+            }
+        }
+        
+        else if (command.toUpperCase().equals("?NOTIFICATIONS")) {
+            dvDuet.sendCommand("NOTIFICATIONS-" + _pjLink.getNotifications());
+        }
+        
+        else if (command.toUpperCase().equals("?PROJECTOR_CLASS")) {
+            dvDuet.sendCommand("PROJECTOR_CLASS-" + _pjLink.getProjectorClass());
+        }
+        
+        else if (command.toUpperCase().equals("QUEUE_CAPACITY")) {
+            try {
+                _pjLink.setQueueCapacity(Integer.parseInt(value));
+                System.out.println("Queue capacity set to " + _pjLink.getQueueCapacity() + " commands for device " + dvDuet.getDPS().toString() + ".");
+            }
+            catch (NumberFormatException ex) {
+                // Don't care.
+            }
+        }
+        
+        else if (command.toUpperCase().equals("?QUEUE_CAPACITY")) {
+            dvDuet.sendCommand("QUEUE_CAPACITY-" + _pjLink.getQueueCapacity());
+        }
+        
+        else if (command.toUpperCase().equals("QUEUE_OVERFLOW")) {
+            int policy = overflowPolicyForName(value);
+            
+            if (policy > -1) {
+                _pjLink.setQueueOverflowPolicy(policy);
+                System.out.println("Queue overflow policy set to " + overflowPolicyName(policy) + " for device " + dvDuet.getDPS().toString() + ".");
+            }
+        }
+        
+        else if (command.toUpperCase().equals("?QUEUE_OVERFLOW")) {
+            dvDuet.sendCommand("QUEUE_OVERFLOW-" + overflowPolicyName(_pjLink.getQueueOverflowPolicy()));
+        }
+        
+        else if (command.toUpperCase().equals("?QUEUE_STATS")) {
+            dvDuet.sendCommand("QUEUE_STATS-" +
+                _pjLink.getQueueDepth() + "," +
+                _pjLink.getQueueDroppedCount() + "," +
+                _pjLink.getQueueRejectedCount() + "," +
+                _pjLink.getCoalescedQueryCount());
+        }
+        
+        else if (command.toUpperCase().equals("?SUPPRESSED_WRITES")) {
+            dvDuet.sendCommand("SUPPRESSED_WRITES-" + getSuppressedChannelWrites());
+        }
     }
 
+    /**
+     * Searches for projectors on a thread of its own, so the event
+     * thread isn't held up for the search window, and reports them
+     * to the device.
+     * @param window Milliseconds to wait for replies.
+     */
+    private void discover(final long window) {
+        new Thread(new Runnable() {
+            public void run() {
+                PJLinkDiscovery.Projector[] found;
+                
+                try {
+                    found = PJLinkDiscovery.search(window);
+                }
+                catch (Exception ex) {
+                    System.out.println("PJLink discovery failed for device " + dvDuet.getDPS().toString() + ": " + ex);
+                    return;
+                }
+                
+                for (int i = 0; i < found.length; i++) {
+                    dvDuet.sendCommand("DISCOVERED-" + found[i].getIPAddress() + "," + found[i].getMACAddress());
+                }
+                
+                dvDuet.sendCommand("DISCOVERED-END," + found.length);
+            }
+        }, "PJLinkDiscovery").start();
+    }
+    
+    /**
+     * @return The power state named by an OFF, WARMING or COOLING suffix, or -1.
+     */
+    private int powerStateForName(String name) {
+        if (name.toUpperCase().equals("OFF")) return PJLink.POWER_OFF;
+        if (name.toUpperCase().equals("WARMING")) return PJLink.POWER_WARMING;
+        if (name.toUpperCase().equals("COOLING")) return PJLink.POWER_COOLING;
+        return -1;
+    }
+    
+    private String circuitStateName(int state) {
+        if (state == PJLink.CIRCUIT_OPEN) return "OPEN";
+        if (state == PJLink.CIRCUIT_HALF_OPEN) return "HALF_OPEN";
+        return "CLOSED";
+    }
+    
+    /**
+     * @return The queue overflow policy named, or -1.
+     */
+    private int overflowPolicyForName(String name) {
+        if (name.toUpperCase().equals("DROP_OLDEST_POLL")) return PJLink.QUEUE_OVERFLOW_DROP_OLDEST_POLL;
+        if (name.toUpperCase().equals("REJECT")) return PJLink.QUEUE_OVERFLOW_REJECT;
+        if (name.toUpperCase().equals("COALESCE")) return PJLink.QUEUE_OVERFLOW_COALESCE;
+        return -1;
+    }
+    
+    private String overflowPolicyName(int policy) {
+        if (policy == PJLink.QUEUE_OVERFLOW_REJECT) return "REJECT";
+        if (policy == PJLink.QUEUE_OVERFLOW_COALESCE) return "COALESCE";
+        return "DROP_OLDEST_POLL";
+    }
+    
+    private String ioEngineName(int engine) {
+        return (engine == PJLink.IO_ENGINE_SELECTOR) ? "SELECTOR" : "BLOCKING";
+    }
+    
+    /**
+     * @return Number of channel updates skipped because the channel
+     *         was already in the requested state.
+     */
+    public long getSuppressedChannelWrites() {
+        synchronized (_channelState) {
+            return _suppressedChannelWrites;
+        }
+    }
+    
+    /**
+     * Turns a channel's output and feedback on or off, unless that is
+     * the state last sent for the channel.
+     * @param channel
+     * @param on
+     */
+    private void setChannel(int channel, boolean on) {
+        if (channel < 1 || channel > CHANNEL_COUNT) return;
+        
+        int word = channel >> 5;
+        int bit = 1 << (channel & 31);
+        
+        synchronized (_channelState) {
+            if ((_channelKnown[word] & bit) != 0 && ((_channelState[word] & bit) != 0) == on) {
+                _suppressedChannelWrites++;
+                return;
+            }
+            
+            _channelKnown[word] |= bit;
+            
+            if (on == true) {
+                _channelState[word] |= bit;
+            }
+            else {
+                _channelState[word] &= ~bit;
+            }
+        }
+        
+        if (on == true) {
+            dvDuet.onOutputChannel(channel);
+            dvDuet.onFeedbackChannel(channel);
+        }
+        else {
+            dvDuet.offOutputChannel(channel);
+            dvDuet.offFeedbackChannel(channel);
+        }
+    }
+    
+    /**
+     * Makes the next <code>setChannel()</code> for the channel go out.
+     * @param channel
+     */
+    private void forgetChannel(int channel) {
+        if (channel < 1 || channel > CHANNEL_COUNT) return;
+        
+        synchronized (_channelState) {
+            _channelKnown[channel >> 5] &= ~(1 << (channel & 31));
+        }
+    }
+    
     public void handleCustomEvent(Event obj, Custom cEvt) {
         super.handleCustomEvent(obj, cEvt);
     }
@@ -442,141 +767,108 @@ public class PJLinkModule extends Utility implements PJLinkListener{
             int error = e.getEventData();
             
             if (error == 0) {
-                dvDuet.offOutputChannel(CHAN_ERROR_PROJECTOR_FAILURE);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_PROJECTOR_FAILURE);
+                setChannel(CHAN_ERROR_PROJECTOR_FAILURE, false);
             }
             
             if ((error & (  PJLink.ERROR_PROJECTOR_FAILURE |
                     PJLink.ERROR_COVER_ERROR | PJLink.ERROR_FAN_ERROR | PJLink.ERROR_FILTER_ERROR |
                     PJLink.ERROR_LAMP_ERROR | PJLink.ERROR_OTHER_ERROR | PJLink.ERROR_TEMP_ERROR)) > 0) {
-                dvDuet.onOutputChannel(CHAN_ERROR_PROJECTOR_FAILURE);
-                dvDuet.onFeedbackChannel(CHAN_ERROR_PROJECTOR_FAILURE);
+                setChannel(CHAN_ERROR_PROJECTOR_FAILURE, true);
                 System.out.println("PJLink projector failure. " + dvDuet.getDPS().toString() + " - " + source.getIPAddress()); 
             }
             
             if ((error & PJLink.ERROR_CONNECTION) > 0) {
                 if (_pjLink.getConnectionError() == true) {
-                    dvDuet.onOutputChannel(CHAN_ERROR_CONNECTION);
-                    dvDuet.onFeedbackChannel(CHAN_ERROR_CONNECTION);
+                    setChannel(CHAN_ERROR_CONNECTION, true);
                 }
                 else {
-                    dvDuet.offOutputChannel(CHAN_ERROR_CONNECTION);
-                    dvDuet.offFeedbackChannel(CHAN_ERROR_CONNECTION);
+                    setChannel(CHAN_ERROR_CONNECTION, false);
                 }
             }
             
+            // Connection errors and error replies to commands carry none of
+            // the error status, so they leave its channels as they are.
+            if ((error & (  PJLink.ERROR_CONNECTION | PJLink.ERROR_UNDEFINED_COMMAND |
+                    PJLink.ERROR_UNAVAILABLE_TIME | PJLink.ERROR_PROJECTOR_FAILURE)) > 0) {
+                break;
+            }
+            
             if ((error & PJLink.ERROR_FAN_WARNING) > 0) {
-                dvDuet.onOutputChannel(CHAN_ERROR_FAN_WARNING);
-                dvDuet.onFeedbackChannel(CHAN_ERROR_FAN_WARNING);
-                dvDuet.offOutputChannel(CHAN_ERROR_FAN_ERROR);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_FAN_ERROR);
+                setChannel(CHAN_ERROR_FAN_WARNING, true);
+                setChannel(CHAN_ERROR_FAN_ERROR, false);
             }
             else if ((error & PJLink.ERROR_FAN_ERROR) > 0) {
-                dvDuet.offOutputChannel(CHAN_ERROR_FAN_WARNING);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_FAN_WARNING);
-                dvDuet.onOutputChannel(CHAN_ERROR_FAN_ERROR);
-                dvDuet.onFeedbackChannel(CHAN_ERROR_FAN_ERROR);
+                setChannel(CHAN_ERROR_FAN_WARNING, false);
+                setChannel(CHAN_ERROR_FAN_ERROR, true);
             }
             else {
-                dvDuet.offOutputChannel(CHAN_ERROR_FAN_WARNING);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_FAN_WARNING);
-                dvDuet.offOutputChannel(CHAN_ERROR_FAN_ERROR);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_FAN_ERROR);
+                setChannel(CHAN_ERROR_FAN_WARNING, false);
+                setChannel(CHAN_ERROR_FAN_ERROR, false);
             }
             
             if ((error & PJLink.ERROR_LAMP_WARNING) > 0) {
-                dvDuet.onOutputChannel(CHAN_ERROR_LAMP_WARNING);
-                dvDuet.onFeedbackChannel(CHAN_ERROR_LAMP_WARNING);
-                dvDuet.offOutputChannel(CHAN_ERROR_LAMP_ERROR);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_LAMP_ERROR);
+                setChannel(CHAN_ERROR_LAMP_WARNING, true);
+                setChannel(CHAN_ERROR_LAMP_ERROR, false);
             }
             else if ((error & PJLink.ERROR_LAMP_ERROR) > 0) {
-                dvDuet.offOutputChannel(CHAN_ERROR_LAMP_WARNING);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_LAMP_WARNING);
-                dvDuet.onOutputChannel(CHAN_ERROR_LAMP_ERROR);
-                dvDuet.onFeedbackChannel(CHAN_ERROR_LAMP_ERROR);
+                setChannel(CHAN_ERROR_LAMP_WARNING, false);
+                setChannel(CHAN_ERROR_LAMP_ERROR, true);
             }
             else {
-                dvDuet.offOutputChannel(CHAN_ERROR_LAMP_WARNING);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_LAMP_WARNING);
-                dvDuet.offOutputChannel(CHAN_ERROR_LAMP_ERROR);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_LAMP_ERROR);
+                setChannel(CHAN_ERROR_LAMP_WARNING, false);
+                setChannel(CHAN_ERROR_LAMP_ERROR, false);
             }
             
             if ((error & PJLink.ERROR_TEMP_WARNING) > 0) {
-                dvDuet.onOutputChannel(CHAN_ERROR_TEMP_WARNING);
-                dvDuet.onFeedbackChannel(CHAN_ERROR_TEMP_WARNING);
-                dvDuet.offOutputChannel(CHAN_ERROR_TEMP_ERROR);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_TEMP_ERROR);
+                setChannel(CHAN_ERROR_TEMP_WARNING, true);
+                setChannel(CHAN_ERROR_TEMP_ERROR, false);
             }
             else if ((error & PJLink.ERROR_TEMP_ERROR) > 0) {
-                dvDuet.offOutputChannel(CHAN_ERROR_TEMP_WARNING);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_TEMP_WARNING);
-                dvDuet.onOutputChannel(CHAN_ERROR_TEMP_ERROR);
-                dvDuet.onFeedbackChannel(CHAN_ERROR_TEMP_ERROR);
+                setChannel(CHAN_ERROR_TEMP_WARNING, false);
+                setChannel(CHAN_ERROR_TEMP_ERROR, true);
             }
             else {
-                dvDuet.offOutputChannel(CHAN_ERROR_TEMP_WARNING);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_TEMP_WARNING);
-                dvDuet.offOutputChannel(CHAN_ERROR_TEMP_ERROR);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_TEMP_ERROR);
+                setChannel(CHAN_ERROR_TEMP_WARNING, false);
+                setChannel(CHAN_ERROR_TEMP_ERROR, false);
             }
             
             if ((error & PJLink.ERROR_COVER_WARNING) > 0) {
-                dvDuet.onOutputChannel(CHAN_ERROR_COVER_WARNING);
-                dvDuet.onFeedbackChannel(CHAN_ERROR_COVER_WARNING);
-                dvDuet.offOutputChannel(CHAN_ERROR_COVER_ERROR);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_COVER_ERROR);
+                setChannel(CHAN_ERROR_COVER_WARNING, true);
+                setChannel(CHAN_ERROR_COVER_ERROR, false);
             }
             else if ((error & PJLink.ERROR_COVER_ERROR) > 0) {
-                dvDuet.offOutputChannel(CHAN_ERROR_COVER_WARNING);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_COVER_WARNING);
-                dvDuet.onOutputChannel(CHAN_ERROR_COVER_ERROR);
-                dvDuet.onFeedbackChannel(CHAN_ERROR_COVER_ERROR);
+                setChannel(CHAN_ERROR_COVER_WARNING, false);
+                setChannel(CHAN_ERROR_COVER_ERROR, true);
             }
             else {
-                dvDuet.offOutputChannel(CHAN_ERROR_COVER_WARNING);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_COVER_WARNING);
-                dvDuet.offOutputChannel(CHAN_ERROR_COVER_ERROR);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_COVER_ERROR);
+                setChannel(CHAN_ERROR_COVER_WARNING, false);
+                setChannel(CHAN_ERROR_COVER_ERROR, false);
             }
             
             if ((error & PJLink.ERROR_FILTER_WARNING) > 0) {
-                dvDuet.onOutputChannel(CHAN_ERROR_FILTER_WARNING);
-                dvDuet.onFeedbackChannel(CHAN_ERROR_FILTER_WARNING);
-                dvDuet.offOutputChannel(CHAN_ERROR_FILTER_ERROR);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_FILTER_ERROR);
+                setChannel(CHAN_ERROR_FILTER_WARNING, true);
+                setChannel(CHAN_ERROR_FILTER_ERROR, false);
             }
             else if ((error & PJLink.ERROR_FILTER_ERROR) > 0) {
-                dvDuet.offOutputChannel(CHAN_ERROR_FILTER_WARNING);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_FILTER_WARNING);
-                dvDuet.onOutputChannel(CHAN_ERROR_FILTER_ERROR);
-                dvDuet.onFeedbackChannel(CHAN_ERROR_FILTER_ERROR);
+                setChannel(CHAN_ERROR_FILTER_WARNING, false);
+                setChannel(CHAN_ERROR_FILTER_ERROR, true);
             }
             else {
-                dvDuet.offOutputChannel(CHAN_ERROR_FILTER_WARNING);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_FILTER_WARNING);
-                dvDuet.offOutputChannel(CHAN_ERROR_FILTER_ERROR);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_FILTER_ERROR);
+                setChannel(CHAN_ERROR_FILTER_WARNING, false);
+                setChannel(CHAN_ERROR_FILTER_ERROR, false);
             }
             
             if ((error & PJLink.ERROR_OTHER_WARNING) > 0) {
-                dvDuet.onOutputChannel(CHAN_ERROR_OTHER_WARNING);
-                dvDuet.onFeedbackChannel(CHAN_ERROR_OTHER_WARNING);
-                dvDuet.offOutputChannel(CHAN_ERROR_OTHER_ERROR);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_OTHER_ERROR);
+                setChannel(CHAN_ERROR_OTHER_WARNING, true);
+                setChannel(CHAN_ERROR_OTHER_ERROR, false);
             }
             else if ((error & PJLink.ERROR_OTHER_ERROR) > 0) {
-                dvDuet.offOutputChannel(CHAN_ERROR_OTHER_WARNING);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_OTHER_WARNING);
-                dvDuet.onOutputChannel(CHAN_ERROR_OTHER_ERROR);
-                dvDuet.onFeedbackChannel(CHAN_ERROR_OTHER_ERROR);
+                setChannel(CHAN_ERROR_OTHER_WARNING, false);
+                setChannel(CHAN_ERROR_OTHER_ERROR, true);
             }
             else {
-                dvDuet.offOutputChannel(CHAN_ERROR_OTHER_WARNING);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_OTHER_WARNING);
-                dvDuet.offOutputChannel(CHAN_ERROR_OTHER_ERROR);
-                dvDuet.offFeedbackChannel(CHAN_ERROR_OTHER_ERROR);
+                setChannel(CHAN_ERROR_OTHER_WARNING, false);
+                setChannel(CHAN_ERROR_OTHER_ERROR, false);
             }
             
             break;
@@ -584,32 +876,26 @@ public class PJLinkModule extends Utility implements PJLinkListener{
         case PJLinkEvent.EVENT_POWER:
             // Lamp channel feedback.
             if (e.getEventData() == PJLink.POWER_ON || e.getEventData() == PJLink.POWER_WARMING) {
-                dvDuet.onOutputChannel(CHAN_LAMP);
-                dvDuet.onFeedbackChannel(CHAN_LAMP);
+                setChannel(CHAN_LAMP, true);
             }
             else {
-                dvDuet.offOutputChannel(CHAN_LAMP);
-                dvDuet.offFeedbackChannel(CHAN_LAMP);
+                setChannel(CHAN_LAMP, false);
             }
             
             // Warming channel feedback.
             if (e.getEventData() == PJLink.POWER_WARMING) {
-                dvDuet.onOutputChannel(CHAN_WARMING);
-                dvDuet.onFeedbackChannel(CHAN_WARMING);
+                setChannel(CHAN_WARMING, true);
             }
             else {
-                dvDuet.offOutputChannel(CHAN_WARMING);
-                dvDuet.offFeedbackChannel(CHAN_WARMING);
+                setChannel(CHAN_WARMING, false);
             }
             
             // Cooling channel feedback.
             if (e.getEventData() == PJLink.POWER_COOLING) {
-                dvDuet.onOutputChannel(CHAN_COOLING);
-                dvDuet.onFeedbackChannel(CHAN_COOLING);
+                setChannel(CHAN_COOLING, true);
             }
             else {
-                dvDuet.offOutputChannel(CHAN_COOLING);
-                dvDuet.offFeedbackChannel(CHAN_COOLING);
+                setChannel(CHAN_COOLING, false);
             }
             break;
             
@@ -618,12 +904,10 @@ public class PJLinkModule extends Utility implements PJLinkListener{
             
             for (int i = CHAN_INPUT_RGB_1; i <= CHAN_INPUT_NETWORK_9; i++) {
                 if (i == active + 300) {
-                    dvDuet.onOutputChannel(i);
-                    dvDuet.onFeedbackChannel(i);
+                    setChannel(i, true);
                 }
                 else {
-                    dvDuet.offOutputChannel(i);
-                    dvDuet.offFeedbackChannel(i);
+                    setChannel(i, false);
                 }
             }
             break;
@@ -636,31 +920,23 @@ public class PJLinkModule extends Utility implements PJLinkListener{
             switch (e.getEventData()) {
             
             case PJLink.MUTE_OFF:
-                dvDuet.offOutputChannel(CHAN_AUDIO_MUTE);
-                dvDuet.offFeedbackChannel(CHAN_AUDIO_MUTE);
-                dvDuet.offOutputChannel(CHAN_PICTURE_MUTE);
-                dvDuet.offFeedbackChannel(CHAN_PICTURE_MUTE);
+                setChannel(CHAN_AUDIO_MUTE, false);
+                setChannel(CHAN_PICTURE_MUTE, false);
                 break;
                 
             case PJLink.MUTE_AUDIO_VIDEO:
-                dvDuet.onOutputChannel(CHAN_AUDIO_MUTE);
-                dvDuet.onFeedbackChannel(CHAN_AUDIO_MUTE);
-                dvDuet.onOutputChannel(CHAN_PICTURE_MUTE);
-                dvDuet.onFeedbackChannel(CHAN_PICTURE_MUTE);
+                setChannel(CHAN_AUDIO_MUTE, true);
+                setChannel(CHAN_PICTURE_MUTE, true);
                 break;
                 
             case PJLink.MUTE_VIDEO_ONLY:
-                dvDuet.offOutputChannel(CHAN_AUDIO_MUTE);
-                dvDuet.offFeedbackChannel(CHAN_AUDIO_MUTE);
-                dvDuet.onOutputChannel(CHAN_PICTURE_MUTE);
-                dvDuet.onFeedbackChannel(CHAN_PICTURE_MUTE);
+                setChannel(CHAN_AUDIO_MUTE, false);
+                setChannel(CHAN_PICTURE_MUTE, true);
                 break;
                 
             case PJLink.MUTE_AUDIO_ONLY:
-                dvDuet.onOutputChannel(CHAN_AUDIO_MUTE);
-                dvDuet.onFeedbackChannel(CHAN_AUDIO_MUTE);
-                dvDuet.offOutputChannel(CHAN_PICTURE_MUTE);
-                dvDuet.offFeedbackChannel(CHAN_PICTURE_MUTE);
+                setChannel(CHAN_AUDIO_MUTE, true);
+                setChannel(CHAN_PICTURE_MUTE, false);
                 break;
             
             default: break;
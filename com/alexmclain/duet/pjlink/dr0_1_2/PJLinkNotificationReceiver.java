@@ -0,0 +1,256 @@
+package com.alexmclain.duet.pjlink.dr0_1_2;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Receives the status notifications that PJLink Class 2 projectors send
+ * over UDP, like <code>%2POWR=1</code> when a projector has warmed up,
+ * and hands each one to the PJLink instance registered for the address
+ * it came from. A single socket and thread serve every projector in the
+ * process.
+ * <p>
+ * The socket also sends the <code>%2SRCH</code> broadcasts of
+ * <code>PJLinkDiscovery</code>, whose <code>%2ACKN</code> replies
+ * arrive on the same port and go to every search in progress.
+ */
+class PJLinkNotificationReceiver implements Runnable {
+    
+    // Port the projectors send notifications to.
+    public static final int NOTIFICATION_PORT = 4352;
+    
+    private static PJLinkNotificationReceiver _instance;
+    
+    private DatagramSocket _socket;
+    private Thread _receiverThread;
+    
+    // Registered PJLink instances, by the host address of their projector.
+    private HashMap _projectors = new HashMap();
+    
+    // Searches collecting %2ACKN replies.
+    private ArrayList _searchListeners = new ArrayList();
+    
+    // Addresses are resolved on their own thread.
+    private ArrayList _lookups = new ArrayList();
+    private Thread _lookupThread;
+    
+    private long _unroutedCount = 0;    // Datagrams from addresses nobody registered.
+    
+    /**
+     * @return The process-wide receiver, started on first use.
+     */
+    public static synchronized PJLinkNotificationReceiver getInstance() throws IOException {
+        if (_instance == null) _instance = new PJLinkNotificationReceiver();
+        return _instance;
+    }
+    
+    private PJLinkNotificationReceiver() throws IOException {
+        _socket = new DatagramSocket(NOTIFICATION_PORT);
+        _socket.setBroadcast(true);
+        
+        _receiverThread = new Thread(this, "PJLinkNotificationReceiver");
+        _receiverThread.setDaemon(true);
+        _receiverThread.start();
+    }
+    
+    /**
+     * Routes the notifications from <code>ipAddress</code> to
+     * <code>projector</code>, replacing any earlier address it had.
+     * The address is registered as given, which is all a numeric address
+     * needs. A host name is resolved on the lookup thread, so a slow name
+     * server never holds up the caller, and routes once it is resolved.
+     * @param ipAddress Address or host name of the projector.
+     * @param projector
+     */
+    public void register(final String ipAddress, final PJLink projector) {
+        synchronized (_projectors) {
+            removeProjector(projector);
+            _projectors.put(ipAddress, projector);
+        }
+        
+        lookup(new Runnable() {
+            public void run() {
+                String hostAddress;
+                
+                try {
+                    hostAddress = InetAddress.getByName(ipAddress).getHostAddress();
+                }
+                catch (UnknownHostException ex) {
+                    System.out.println("PJLink error: Status notifications not available. " + ex);
+                    return;
+                }
+                
+                synchronized (_projectors) {
+                    // Registered again or unregistered meanwhile.
+                    if (_projectors.get(ipAddress) != projector) return;
+                    
+                    _projectors.remove(ipAddress);
+                    _projectors.put(hostAddress, projector);
+                }
+            }
+        });
+    }
+    
+    public void unregister(PJLink projector) {
+        synchronized (_projectors) {
+            removeProjector(projector);
+        }
+    }
+    
+    /**
+     * Sends a datagram from the notification port.
+     * @param data
+     * @param address
+     * @param port
+     */
+    public void send(byte[] data, InetAddress address, int port) throws IOException {
+        _socket.send(new DatagramPacket(data, data.length, address, port));
+    }
+    
+    public void addSearchListener(SearchListener listener) {
+        synchronized (_searchListeners) {
+            _searchListeners.add(listener);
+        }
+    }
+    
+    public void removeSearchListener(SearchListener listener) {
+        synchronized (_searchListeners) {
+            _searchListeners.remove(listener);
+        }
+    }
+    
+    /**
+     * @return Number of datagrams received from addresses no projector is registered for.
+     */
+    public synchronized long getUnroutedCount() {
+        return _unroutedCount;
+    }
+    
+    private void removeProjector(PJLink projector) {
+        Iterator i = _projectors.values().iterator();
+        
+        while (i.hasNext()) {
+            if (i.next() == projector) i.remove();
+        }
+    }
+    
+    /**
+     * Runs <code>task</code> on the lookup thread, started on first use.
+     */
+    private void lookup(Runnable task) {
+        synchronized (_lookups) {
+            _lookups.add(task);
+            _lookups.notify();
+            
+            if (_lookupThread != null) return;
+            
+            _lookupThread = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        Runnable task;
+                        
+                        synchronized (_lookups) {
+                            while (_lookups.isEmpty() == true) {
+                                try {
+                                    _lookups.wait();
+                                }
+                                catch (InterruptedException ex) {
+                                    // Keep waiting.
+                                }
+                            }
+                            
+                            task = (Runnable) _lookups.remove(0);
+                        }
+                        
+                        task.run();
+                    }
+                }
+            }, "PJLinkNotificationReceiver lookup");
+            
+            _lookupThread.setDaemon(true);
+            _lookupThread.start();
+        }
+    }
+    
+    public void run() {
+        byte[] buffer = new byte[PJLinkResponseParser.MAX_LINE_LENGTH];
+        byte[] line = new byte[PJLinkResponseParser.MAX_LINE_LENGTH];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        
+        while (true) {
+            try {
+                packet.setLength(buffer.length);
+                _socket.receive(packet);
+                
+                if (PJLinkResponseParser.command(buffer, packet.getLength()) == PJLinkResponseParser.COMMAND_ACKN) {
+                    searchReplyReceived(packet.getAddress(), buffer, packet.getLength());
+                    continue;
+                }
+                
+                PJLink projector;
+                
+                synchronized (_projectors) {
+                    projector = (PJLink) _projectors.get(packet.getAddress().getHostAddress());
+                }
+                
+                if (projector == null) {
+                    synchronized (this) {
+                        _unroutedCount++;
+                    }
+                    
+                    continue;
+                }
+                
+                // Normally one line per datagram, but take them all.
+                int start = 0;
+                
+                for (int i = 0; i <= packet.getLength(); i++) {
+                    if (i < packet.getLength() && buffer[i] != '\r' && buffer[i] != '\n') continue;
+                    
+                    if (i > start) {
+                        System.arraycopy(buffer, start, line, 0, i - start);
+                        projector.notificationReceived(line, i - start);
+                    }
+                    
+                    start = i + 1;
+                }
+            }
+            catch (IOException ex) {
+                // Keep receiving for the other projectors.
+                System.out.println("PJLink notification receiver error: " + ex);
+            }
+            catch (RuntimeException ex) {
+                System.out.println("PJLink notification failed: " + ex);
+            }
+        }
+    }
+    
+    private void searchReplyReceived(InetAddress address, byte[] buffer, int length) {
+        // Drop the terminator from the MAC address.
+        while (length > 0 && (buffer[length - 1] == '\r' || buffer[length - 1] == '\n')) length--;
+        
+        String macAddress = PJLinkResponseParser.value(buffer, length);
+        Object[] listeners;
+        
+        synchronized (_searchListeners) {
+            listeners = _searchListeners.toArray();
+        }
+        
+        for (int i = 0; i < listeners.length; i++) {
+            ((SearchListener) listeners[i]).searchReplyReceived(address.getHostAddress(), macAddress);
+        }
+    }
+    
+    /**
+     * Receives the <code>%2ACKN</code> replies to a search, on the receiver's thread.
+     */
+    interface SearchListener {
+        public void searchReplyReceived(String ipAddress, String macAddress);
+    }
+}
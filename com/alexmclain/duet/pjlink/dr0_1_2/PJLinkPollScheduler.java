@@ -0,0 +1,82 @@
+package com.alexmclain.duet.pjlink.dr0_1_2;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Runs the periodic polls of every PJLink instance in the process on
+ * a single timer thread, instead of one timer thread per projector.
+ * Each poll keeps its own interval, which can be changed while it is
+ * scheduled.
+ */
+class PJLinkPollScheduler {
+    
+    private static Timer _timer = new Timer(true);
+    
+    private PJLinkPollScheduler() {
+    }
+    
+    /**
+     * Runs <code>poll</code> every <code>interval</code> milliseconds,
+     * starting one interval from now. An interval less than 1 leaves
+     * the poll registered but idle until it is rescheduled.
+     * @param poll
+     * @param interval
+     * @return Handle used to reschedule or cancel the poll.
+     */
+    public static PollHandle schedule(Runnable poll, long interval) {
+        PollHandle handle = new PollHandle(poll);
+        handle.reschedule(interval);
+        return handle;
+    }
+    
+    /**
+     * A poll registered with the scheduler.
+     */
+    public static class PollHandle {
+        private Runnable _poll;
+        private TimerTask _task;
+        private long _interval = 0;
+        
+        private PollHandle(Runnable poll) {
+            _poll = poll;
+        }
+        
+        public synchronized long getInterval() {
+            return _interval;
+        }
+        
+        /**
+         * Changes the poll's interval. The next poll runs one new
+         * interval from now.
+         * @param interval Milliseconds between polls.
+         */
+        public synchronized void reschedule(long interval) {
+            if (_task != null) _task.cancel();
+            _task = null;
+            _interval = interval;
+            
+            if (interval < 1) return;
+            
+            _task = new TimerTask() {
+                public void run() {
+                    try {
+                        _poll.run();
+                    }
+                    catch (RuntimeException ex) {
+                        // An exception would kill the timer thread,
+                        // which is shared by every projector.
+                        System.out.println("PJLink poll failed: " + ex);
+                    }
+                }
+            };
+            
+            // Fixed delay, so a stalled timer thread doesn't release a burst of polls.
+            _timer.schedule(_task, interval, interval);
+        }
+        
+        public synchronized void cancel() {
+            reschedule(0);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.alexmclain.duet.pjlink.dr0_1_2;
+
+/**
+ * Parses the lines a projector sends, working directly on the received
+ * bytes. A response is dispatched on its four character command code
+ * and its value is decoded in place, so parsing a line creates no
+ * objects. Results are reported through the typed callbacks of a
+ * <code>Handler</code>.
+ */
+class PJLinkResponseParser {
+    
+    // Kinds of line returned by parse().
+    public static final int LINE_UNKNOWN        = 0;
+    public static final int LINE_GREETING       = 1;    // PJLINK 0
+    public static final int LINE_GREETING_AUTH  = 2;    // PJLINK 1 <random number>
+    public static final int LINE_AUTH_ERROR     = 3;    // PJLINK ERRA
+    public static final int LINE_RESPONSE       = 4;    // %<class><command>=<value>
+    
+    // Longest line kept. PJLink responses are well under this.
+    public static final int MAX_LINE_LENGTH = 512;
+    
+    // Command codes, packed four ASCII characters to an int.
+    public static final int COMMAND_POWR = ('P' << 24) | ('O' << 16) | ('W' << 8) | 'R';
+    public static final int COMMAND_INPT = ('I' << 24) | ('N' << 16) | ('P' << 8) | 'T';
+    public static final int COMMAND_AVMT = ('A' << 24) | ('V' << 16) | ('M' << 8) | 'T';
+    public static final int COMMAND_ERST = ('E' << 24) | ('R' << 16) | ('S' << 8) | 'T';
+    public static final int COMMAND_LAMP = ('L' << 24) | ('A' << 16) | ('M' << 8) | 'P';
+    public static final int COMMAND_INST = ('I' << 24) | ('N' << 16) | ('S' << 8) | 'T';
+    public static final int COMMAND_CLSS = ('C' << 24) | ('L' << 16) | ('S' << 8) | 'S';
+    public static final int COMMAND_LKUP = ('L' << 24) | ('K' << 16) | ('U' << 8) | 'P';    // Class 2 notification.
+    public static final int COMMAND_ACKN = ('A' << 24) | ('C' << 16) | ('K' << 8) | 'N';    // Class 2 search reply.
+    
+    // "%1POWR=" is the shortest prefix of a response.
+    private static final int VALUE_OFFSET = 7;
+    
+    private static final byte[] GREETING = {'P', 'J', 'L', 'I', 'N', 'K', ' '};
+    
+    private PJLinkResponseParser() {
+    }
+    
+    /**
+     * Parses one line, without its terminator. Greetings are only
+     * identified; the results of a response go to <code>handler</code>.
+     * @param line
+     * @param length Number of bytes of <code>line</code> in use.
+     * @param handler
+     * @return The kind of line, one of the <code>LINE_</code> constants.
+     */
+    public static int parse(byte[] line, int length, Handler handler) {
+        if (startsWith(line, length, GREETING) == true && length > GREETING.length) {
+            byte b = line[GREETING.length];
+            
+            if (b == '0') return LINE_GREETING;
+            if (b == '1' && length > GREETING.length + 2) return LINE_GREETING_AUTH;
+            
+            if (length == GREETING.length + 4 && b == 'E' && line[GREETING.length + 1] == 'R' &&
+                line[GREETING.length + 2] == 'R' && line[GREETING.length + 3] == 'A') {
+                handler.authenticationError();
+                return LINE_AUTH_ERROR;
+            }
+            
+            return LINE_UNKNOWN;
+        }
+        
+        if (length < VALUE_OFFSET + 1 || isResponse(line) == false) return LINE_UNKNOWN;
+        
+        int command = ((line[2] & 0xFF) << 24) | ((line[3] & 0xFF) << 16) | ((line[4] & 0xFF) << 8) | (line[5] & 0xFF);
+        int valueLength = length - VALUE_OFFSET;
+        
+        // Replies shared by every command.
+        if (valueLength == 2 && line[VALUE_OFFSET] == 'O' && line[VALUE_OFFSET + 1] == 'K') {
+            handler.commandAccepted(command);
+            return LINE_RESPONSE;
+        }
+        
+        if (valueLength == 4 && line[VALUE_OFFSET] == 'E' && line[VALUE_OFFSET + 1] == 'R' && line[VALUE_OFFSET + 2] == 'R') {
+            switch (line[VALUE_OFFSET + 3]) {
+            case '1':
+                handler.commandError(command, PJLink.ERROR_UNDEFINED_COMMAND);
+                break;
+                
+            case '2':
+                handler.parameterError(command);
+                break;
+                
+            case '3':
+                handler.commandError(command, PJLink.ERROR_UNAVAILABLE_TIME);
+                break;
+                
+            case '4':
+                handler.commandError(command, PJLink.ERROR_PROJECTOR_FAILURE);
+                break;
+                
+            default: break;
+            }
+            
+            return LINE_RESPONSE;
+        }
+        
+        // Values, by command.
+        int value;
+        
+        switch (command) {
+        
+        case COMMAND_POWR:
+            value = parseNumber(line, VALUE_OFFSET, length);
+            if (value > -1) handler.powerState(value);
+            break;
+            
+        case COMMAND_INPT:
+            // Input type and number, e.g. 31 for digital 1. Only decimal
+            // input numbers fit the PJLink.INPUT_ codes, so the Class 2
+            // inputs numbered A to Z are out of scope and ignored.
+            value = parseNumber(line, VALUE_OFFSET, length);
+            if (valueLength == 2 && value > -1) handler.activeInput(value);
+            break;
+            
+        case COMMAND_AVMT:
+            value = parseNumber(line, VALUE_OFFSET, length);
+            if (valueLength == 2 && value > -1) handler.avMute(value);
+            break;
+            
+        case COMMAND_ERST:
+            // One digit each: fan, lamp, temperature, cover, filter, other.
+            if (valueLength != 6 || isErrorStatus(line, VALUE_OFFSET) == false) break;
+            
+            handler.errorStatus(
+                line[VALUE_OFFSET]      - '0',
+                line[VALUE_OFFSET + 1]  - '0',
+                line[VALUE_OFFSET + 2]  - '0',
+                line[VALUE_OFFSET + 3]  - '0',
+                line[VALUE_OFFSET + 4]  - '0',
+                line[VALUE_OFFSET + 5]  - '0'
+            );
+            break;
+            
+        case COMMAND_LAMP:
+            // Hours of the first lamp, followed by its on/off state.
+            int hoursEnd = indexOf(line, VALUE_OFFSET, length, (byte) ' ');
+            
+            if (hoursEnd > -1) {
+                value = parseNumber(line, VALUE_OFFSET, hoursEnd);
+                if (value > -1) handler.lampHours(value);
+            }
+            break;
+            
+        case COMMAND_INST:
+            // TODO: Implement list enumeration response.
+            break;
+            
+        case COMMAND_CLSS:
+            value = parseNumber(line, VALUE_OFFSET, length);
+            if (value > 0) handler.projectorClass(value);
+            break;
+            
+        case COMMAND_LKUP:
+            // The projector's network came up. The value is its MAC address.
+            handler.linkUp();
+            break;
+            
+        default: break;
+        }
+        
+        return LINE_RESPONSE;
+    }
+    
+    /**
+     * @return The <code>COMMAND_</code> code of a response, or 0 if the line isn't one.
+     */
+    public static int command(byte[] line, int length) {
+        if (length < VALUE_OFFSET || isResponse(line) == false) return 0;
+        return ((line[2] & 0xFF) << 24) | ((line[3] & 0xFF) << 16) | ((line[4] & 0xFF) << 8) | (line[5] & 0xFF);
+    }
+    
+    /**
+     * @return The value of a response, everything after the <code>=</code>.
+     */
+    public static String value(byte[] line, int length) {
+        char[] value = new char[Math.max(length - VALUE_OFFSET, 0)];
+        
+        for (int i = 0; i < value.length; i++) value[i] = (char) (line[VALUE_OFFSET + i] & 0xFF);
+        
+        return new String(value);
+    }
+    
+    /**
+     * @return 1 to 4 if the line is an ERR1 to ERR4 response, otherwise 0.
+     */
+    public static int errorNumber(byte[] line, int length) {
+        if (length != VALUE_OFFSET + 4 || isResponse(line) == false) return 0;
+        if (line[VALUE_OFFSET] != 'E' || line[VALUE_OFFSET + 1] != 'R' || line[VALUE_OFFSET + 2] != 'R') return 0;
+        
+        int number = line[VALUE_OFFSET + 3] - '0';
+        return (number >= 1 && number <= 4) ? number : 0;
+    }
+    
+    /**
+     * @return The random number of a <code>LINE_GREETING_AUTH</code> greeting.
+     */
+    public static String greetingKey(byte[] line, int length) {
+        int offset = GREETING.length + 2;
+        char[] key = new char[length - offset];
+        
+        for (int i = 0; i < key.length; i++) key[i] = (char) (line[offset + i] & 0xFF);
+        
+        return new String(key);
+    }
+    
+    /**
+     * @return <code>line</code>, at least <code>VALUE_OFFSET</code> bytes
+     *         long, starts like a response: <code>%</code>, a class of 1
+     *         or 2, a command code and <code>=</code>. Responses to the
+     *         commands sent are Class 1. Class 2 lines are the
+     *         notifications and search replies of Class 2 projectors.
+     */
+    private static boolean isResponse(byte[] line) {
+        return line[0] == '%' && (line[1] == '1' || line[1] == '2') && line[VALUE_OFFSET - 1] == '=';
+    }
+    
+    /**
+     * @return The six bytes from <code>start</code> are each a status
+     *         of 0 (OK), 1 (warning) or 2 (error).
+     */
+    private static boolean isErrorStatus(byte[] line, int start) {
+        for (int i = start; i < start + 6; i++) {
+            if (line[i] < '0' || line[i] > '2') return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * @return The decimal number in <code>line[start..end)</code>, or -1
+     *         if it is empty, too long, or not all digits.
+     */
+    private static int parseNumber(byte[] line, int start, int end) {
+        if (start >= end || end - start > 9) return -1;
+        
+        int value = 0;
+        
+        for (int i = start; i < end; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) return -1;
+            value = value * 10 + digit;
+        }
+        
+        return value;
+    }
+    
+    private static int indexOf(byte[] line, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (line[i] == b) return i;
+        }
+        
+        return -1;
+    }
+    
+    private static boolean startsWith(byte[] line, int length, byte[] prefix) {
+        if (length < prefix.length) return false;
+        
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[i] != prefix[i]) return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Receives the results of parsing a response.
+     */
+    interface Handler {
+        public void authenticationError();
+        
+        /**
+         * The projector accepted a control command.
+         * @param command One of the <code>COMMAND_</code> codes.
+         */
+        public void commandAccepted(int command);
+        
+        /**
+         * @param command One of the <code>COMMAND_</code> codes.
+         * @param error <code>PJLink.ERROR_UNDEFINED_COMMAND</code>,
+         *        <code>ERROR_UNAVAILABLE_TIME</code> or <code>ERROR_PROJECTOR_FAILURE</code>.
+         */
+        public void commandError(int command, int error);
+        
+        /**
+         * The command's parameter was out of range (ERR2).
+         * @param command One of the <code>COMMAND_</code> codes.
+         */
+        public void parameterError(int command);
+        
+        public void powerState(int powerState);
+        public void activeInput(int input);
+        public void avMute(int mute);
+        
+        /**
+         * Each status is 0 for OK, 1 for a warning or 2 for an error.
+         */
+        public void errorStatus(int fan, int lamp, int temp, int cover, int filter, int other);
+        
+        public void lampHours(int hours);
+        
+        /**
+         * @param projectorClass Highest PJLink class the projector supports.
+         */
+        public void projectorClass(int projectorClass);
+        
+        /**
+         * The projector announced that it is connected to the network.
+         */
+        public void linkUp();
+    }
+}
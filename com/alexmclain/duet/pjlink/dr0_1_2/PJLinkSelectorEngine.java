@@ -0,0 +1,490 @@
+package com.alexmclain.duet.pjlink.dr0_1_2;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Non-blocking I/O engine that drives the connections of any number of
+ * PJLink instances from a single thread, using a <code>java.nio</code>
+ * selector instead of a reader thread and a timer thread per connection.
+ * Deadlines are kept by the shared <code>PJLinkTimeoutWheel</code>.
+ * <p>
+ * The engine only moves lines of text. The PJLink protocol is handled by
+ * a <code>Handler</code>, whose callbacks all run on the engine thread.
+ * Connections must only be opened, written and closed on the engine
+ * thread; other threads hand work to it with <code>execute()</code>.
+ */
+class PJLinkSelectorEngine implements Runnable {
+    
+    // Longest line kept. PJLink responses are well under this.
+    private static final int MAX_LINE_LENGTH = 512;
+    
+    private static PJLinkSelectorEngine _instance;
+    
+    private Selector _selector;
+    private Thread _engineThread;
+    
+    private ArrayList _tasks = new ArrayList();
+    private HashSet _connections = new HashSet();
+    
+    // Host names are looked up on their own thread.
+    private ArrayList _lookups = new ArrayList();
+    private Thread _lookupThread;
+    
+    /**
+     * @return The process-wide engine, started on first use.
+     */
+    public static synchronized PJLinkSelectorEngine getInstance() throws IOException {
+        if (_instance == null) _instance = new PJLinkSelectorEngine();
+        return _instance;
+    }
+    
+    private PJLinkSelectorEngine() throws IOException {
+        _selector = Selector.open();
+        
+        _engineThread = new Thread(this, "PJLinkSelectorEngine");
+        _engineThread.setDaemon(true);
+        _engineThread.start();
+    }
+    
+    /**
+     * Runs <code>task</code> on the engine thread.
+     * @param task
+     */
+    public void execute(Runnable task) {
+        synchronized (_tasks) {
+            _tasks.add(task);
+        }
+        
+        _selector.wakeup();
+    }
+    
+    /**
+     * @return Number of connections currently open.
+     */
+    public int getConnectionCount() {
+        synchronized (_connections) {
+            return _connections.size();
+        }
+    }
+    
+    /**
+     * Starts connecting to a projector. Must be called on the engine thread.
+     * <code>handler.connected()</code> or <code>handler.closed()</code>
+     * is called when the attempt completes, including when the address
+     * can't be resolved.
+     * @param ipAddress Address, or a host name to look up off the engine thread.
+     * @param port
+     * @param handler
+     * @return The new connection.
+     */
+    public Connection connect(final String ipAddress, final int port, Handler handler) {
+        final Connection connection = new Connection(handler);
+        
+        synchronized (_connections) {
+            _connections.add(connection);
+        }
+        
+        if (isAddressLiteral(ipAddress) == true) {
+            open(connection, ipAddress, port);
+            return connection;
+        }
+        
+        // A slow name server must not hold up every other projector.
+        lookup(new Runnable() {
+            public void run() {
+                final InetAddress[] address = new InetAddress[1];
+                
+                try {
+                    address[0] = InetAddress.getByName(ipAddress);
+                }
+                catch (UnknownHostException ex) {
+                    // Fails below.
+                }
+                
+                execute(new Runnable() {
+                    public void run() {
+                        if (connection.isClosed() == true) return;
+                        
+                        if (address[0] == null) {
+                            connection.fail();
+                            return;
+                        }
+                        
+                        open(connection, address[0].getHostAddress(), port);
+                    }
+                });
+            }
+        });
+        
+        return connection;
+    }
+    
+    /**
+     * Opens the channel of a connection to a resolved address.
+     */
+    private void open(final Connection connection, String ipAddress, int port) {
+        try {
+            connection._channel = SocketChannel.open();
+            connection._channel.configureBlocking(false);
+            connection._channel.socket().setTcpNoDelay(true);
+            
+            if (connection._channel.connect(new InetSocketAddress(ipAddress, port)) == true) {
+                connection._key = connection._channel.register(_selector, SelectionKey.OP_READ, connection);
+                
+                // Report it after the caller has the connection in hand.
+                execute(new Runnable() {
+                    public void run() {
+                        if (connection.isClosed() == false) connection._handler.connected(connection);
+                    }
+                });
+            }
+            else {
+                connection._key = connection._channel.register(_selector, SelectionKey.OP_CONNECT, connection);
+            }
+        }
+        catch (IOException ex) {
+            failLater(connection);
+        }
+        catch (RuntimeException ex) {
+            // Port out of range, or an address the channel can't use.
+            failLater(connection);
+        }
+    }
+    
+    /**
+     * Fails a connection after the caller has it in hand.
+     */
+    private void failLater(final Connection connection) {
+        execute(new Runnable() {
+            public void run() {
+                connection.fail();
+            }
+        });
+    }
+    
+    /**
+     * @return <code>address</code> is an IPv4 or IPv6 address, which
+     *         needs no name lookup.
+     */
+    private static boolean isAddressLiteral(String address) {
+        if (address.indexOf(':') >= 0) return true;
+        
+        int parts = 0;
+        int digits = 0;
+        int value = 0;
+        
+        for (int i = 0; i <= address.length(); i++) {
+            char c = (i < address.length()) ? address.charAt(i) : '.';
+            
+            if (c == '.') {
+                if (digits == 0 || value > 255) return false;
+                parts++;
+                digits = 0;
+                value = 0;
+            }
+            else if (c >= '0' && c <= '9' && digits < 3) {
+                value = value * 10 + (c - '0');
+                digits++;
+            }
+            else {
+                return false;
+            }
+        }
+        
+        return parts == 4;
+    }
+    
+    /**
+     * Runs <code>task</code> on the lookup thread, started on first use.
+     */
+    private void lookup(Runnable task) {
+        synchronized (_lookups) {
+            _lookups.add(task);
+            _lookups.notify();
+            
+            if (_lookupThread != null) return;
+            
+            _lookupThread = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        Runnable task;
+                        
+                        synchronized (_lookups) {
+                            while (_lookups.isEmpty() == true) {
+                                try {
+                                    _lookups.wait();
+                                }
+                                catch (InterruptedException ex) {
+                                    // Keep waiting.
+                                }
+                            }
+                            
+                            task = (Runnable) _lookups.remove(0);
+                        }
+                        
+                        task.run();
+                    }
+                }
+            }, "PJLinkSelectorEngine lookup");
+            
+            _lookupThread.setDaemon(true);
+            _lookupThread.start();
+        }
+    }
+    
+    public void run() {
+        while (true) {
+            try {
+                _selector.select();
+                
+                Iterator i = _selector.selectedKeys().iterator();
+                while (i.hasNext()) {
+                    SelectionKey key = (SelectionKey) i.next();
+                    i.remove();
+                    
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isValid() == false) continue;
+                    
+                    try {
+                        if (key.isConnectable() == true) {
+                            connection._channel.finishConnect();
+                            key.interestOps(SelectionKey.OP_READ);
+                            connection._handler.connected(connection);
+                        }
+                        else {
+                            if (key.isWritable() == true) connection.send();
+                            if (key.isValid() == true && key.isReadable() == true) connection.read();
+                        }
+                    }
+                    catch (IOException ex) {
+                        connection.fail();
+                    }
+                    catch (RuntimeException ex) {
+                        // A handler failed. Carry on with the other connections.
+                        System.out.println("PJLink selector handler failed: " + ex);
+                    }
+                }
+                
+                runTasks();
+            }
+            catch (Exception ex) {
+                // Keep the engine running for the other projectors.
+                System.out.println("PJLink selector engine error: " + ex);
+            }
+        }
+    }
+    
+    private void runTasks() {
+        Object[] tasks;
+        
+        synchronized (_tasks) {
+            if (_tasks.isEmpty() == true) return;
+            tasks = _tasks.toArray();
+            _tasks.clear();
+        }
+        
+        for (int i = 0; i < tasks.length; i++) {
+            try {
+                ((Runnable) tasks[i]).run();
+            }
+            catch (RuntimeException ex) {
+                // The tasks that follow were already taken off the list.
+                System.out.println("PJLink selector task failed: " + ex);
+            }
+        }
+    }
+    
+    /**
+     * Receives the events of a connection, on the engine thread.
+     */
+    interface Handler {
+        public void connected(Connection connection);
+        
+        /**
+         * @param line Line received, without its terminator. The array
+         *        is reused for the next line, so it must not be kept.
+         * @param length Number of bytes of <code>line</code> in use.
+         */
+        public void lineReceived(Connection connection, byte[] line, int length);
+        
+        /**
+         * The connection failed or was closed by the projector.
+         * Not called when the handler closes the connection itself.
+         */
+        public void closed(Connection connection);
+        
+        public void deadlineExpired(Connection connection);
+    }
+    
+    /**
+     * A connection to one projector.
+     */
+    class Connection {
+        private Handler _handler;
+        private SocketChannel _channel;
+        private SelectionKey _key;
+        
+        private ByteBuffer _readBuffer = ByteBuffer.allocate(256);
+        private ByteBuffer _writeBuffer = ByteBuffer.allocate(256);    // Kept ready for put().
+        private byte[] _line = new byte[MAX_LINE_LENGTH];
+        private int _lineLength = 0;
+        
+        private PJLinkTimeoutWheel.Timeout _deadline;
+        private boolean _closed = false;
+        
+        private Connection(Handler handler) {
+            _handler = handler;
+        }
+        
+        public boolean isClosed() {
+            return _closed;
+        }
+        
+        /**
+         * Calls <code>handler.deadlineExpired()</code> if the deadline
+         * passes before it is changed or cleared.
+         * @param delay Milliseconds from now, or 0 to clear the deadline.
+         */
+        public void setDeadline(long delay) {
+            if (_deadline != null) _deadline.cancel();
+            _deadline = null;
+            
+            if (delay < 1) return;
+            
+            final PJLinkTimeoutWheel.Timeout[] deadline = new PJLinkTimeoutWheel.Timeout[1];
+            
+            deadline[0] = PJLinkTimeoutWheel.getInstance().schedule(new Runnable() {
+                public void run() {
+                    // Expire it on the engine thread, unless it was replaced meanwhile.
+                    execute(new Runnable() {
+                        public void run() {
+                            if (_closed == true || _deadline != deadline[0]) return;
+                            
+                            _deadline = null;
+                            _handler.deadlineExpired(Connection.this);
+                        }
+                    });
+                }
+            }, delay);
+            
+            _deadline = deadline[0];
+        }
+        
+        /**
+         * Adds <code>data</code> to the connection's write buffer. Nothing
+         * is sent until <code>flush()</code>. Must be called on the engine thread.
+         * @param data
+         */
+        public void write(byte[] data) {
+            if (_closed == true) return;
+            
+            if (_writeBuffer.remaining() < data.length) {
+                ByteBuffer buffer = ByteBuffer.allocate(_writeBuffer.position() + data.length);
+                _writeBuffer.flip();
+                buffer.put(_writeBuffer);
+                _writeBuffer = buffer;
+            }
+            
+            _writeBuffer.put(data);
+        }
+        
+        /**
+         * Sends the write buffer, finishing in the background if the
+         * socket can't take all of it. Must be called on the engine thread.
+         */
+        public void flush() {
+            if (_closed == true) return;
+            
+            try {
+                send();
+            }
+            catch (IOException ex) {
+                fail();
+            }
+        }
+        
+        /**
+         * Closes the connection without calling <code>handler.closed()</code>.
+         */
+        public void close() {
+            if (_closed == true) return;
+            
+            _closed = true;
+            
+            synchronized (_connections) {
+                _connections.remove(this);
+            }
+            
+            if (_deadline != null) _deadline.cancel();
+            _deadline = null;
+            
+            if (_key != null) _key.cancel();
+            
+            try {
+                if (_channel != null) _channel.close();
+            }
+            catch (IOException ex) {
+                // Don't care.  Socket is getting destroyed.
+            }
+        }
+        
+        private void fail() {
+            if (_closed == true) return;
+            
+            close();
+            _handler.closed(this);
+        }
+        
+        private void send() throws IOException {
+            _writeBuffer.flip();
+            _channel.write(_writeBuffer);
+            _writeBuffer.compact();
+            
+            if (_key == null || _key.isValid() == false) return;
+            
+            if (_writeBuffer.position() > 0) {
+                _key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+            else {
+                _key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+        
+        private void read() throws IOException {
+            _readBuffer.clear();
+            int count = _channel.read(_readBuffer);
+            
+            if (count < 0) {
+                fail();
+                return;
+            }
+            
+            _readBuffer.flip();
+            
+            while (_readBuffer.hasRemaining() == true && _closed == false) {
+                byte b = _readBuffer.get();
+                
+                if (b == '\r' || b == '\n') {
+                    if (_lineLength > 0) {
+                        int length = _lineLength;
+                        _lineLength = 0;
+                        _handler.lineReceived(this, _line, length);
+                    }
+                }
+                else if (_lineLength < _line.length) {
+                    _line[_lineLength++] = b;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.alexmclain.duet.pjlink.dr0_1_2;
+
+/**
+ * Immutable snapshot of a projector's state. <code>PJLink</code> replaces
+ * its snapshot every time a response is applied, so the values of one
+ * snapshot always belong together, and reading them takes no lock.
+ */
+public class PJLinkState {
+    
+    private int _powerState;
+    private int _activeInput;
+    private boolean _audioMuteActive;
+    private boolean _videoMuteActive;
+    private int _avMuteState;
+    private int _lampHours;
+    private int _errorStatus;
+    private long[] _confirmedTime;
+    private long _time;
+    
+    PJLinkState(int powerState, int activeInput, boolean audioMuteActive, boolean videoMuteActive,
+                int avMuteState, int lampHours, int errorStatus, long[] confirmedTime) {
+        _powerState = powerState;
+        _activeInput = activeInput;
+        _audioMuteActive = audioMuteActive;
+        _videoMuteActive = videoMuteActive;
+        _avMuteState = avMuteState;
+        _lampHours = lampHours;
+        _errorStatus = errorStatus;
+        _confirmedTime = (long[]) confirmedTime.clone();
+        _time = System.currentTimeMillis();
+    }
+    
+    /**
+     * @return <code>PJLink.POWER_</code> state.
+     */
+    public int getPowerState() {
+        return _powerState;
+    }
+    
+    /**
+     * @return <code>PJLink.INPUT_</code> constant.
+     */
+    public int getActiveInput() {
+        return _activeInput;
+    }
+    
+    public boolean getAudioMuteActive() {
+        return _audioMuteActive;
+    }
+    
+    public boolean getVideoMuteActive() {
+        return _videoMuteActive;
+    }
+    
+    /**
+     * @return <code>PJLink.MUTE_</code> state of audio and video together.
+     */
+    public int getAVMuteState() {
+        return _avMuteState;
+    }
+    
+    public int getLampHours() {
+        return _lampHours;
+    }
+    
+    /**
+     * @return Warning and error bits, packed like the <code>PJLink.ERROR_</code> constants.
+     */
+    public int getErrorStatus() {
+        return _errorStatus;
+    }
+    
+    /**
+     * @param eventType The <code>PJLinkEvent.EVENT_</code> type reporting the state.
+     * @return When the projector last reported the state, or 0 if it
+     *         hasn't or <code>eventType</code> isn't a state.
+     */
+    public long getConfirmedTime(int eventType) {
+        if (eventType < 0 || eventType >= _confirmedTime.length) return 0;
+        return _confirmedTime[eventType];
+    }
+    
+    /**
+     * @return When the snapshot was taken.
+     */
+    public long getTime() {
+        return _time;
+    }
+}
@@ -0,0 +1,201 @@
+package com.alexmclain.duet.pjlink.dr0_1_2;
+
+/**
+ * Process-wide hashed timing wheel for connection, greeting and response
+ * deadlines. A single thread serves every deadline of every projector,
+ * so arming a deadline doesn't create a thread the way a new
+ * <code>java.util.Timer</code> does. Scheduling and cancelling are O(1).
+ * <p>
+ * Deadlines fire on the wheel's thread, with a resolution of one tick.
+ * Tasks must be short; hand longer work to another thread.
+ */
+class PJLinkTimeoutWheel implements Runnable {
+    
+    private static final long TICK_DURATION = 50;      // Milliseconds per tick.
+    private static final int WHEEL_SIZE     = 256;     // Buckets, a power of two.
+    private static final int WHEEL_MASK     = WHEEL_SIZE - 1;
+    
+    private static PJLinkTimeoutWheel _instance;
+    
+    // Each bucket is the sentinel of a circular doubly linked list.
+    private Timeout[] _buckets = new Timeout[WHEEL_SIZE];
+    
+    private long _startTime = System.currentTimeMillis();
+    private long _lastElapsed = 0;  // Never goes back, see elapsed().
+    private long _lastTick = 0;     // Last tick whose bucket was processed.
+    private int _pending = 0;       // Scheduled timeouts not yet fired or cancelled.
+    
+    private Thread _wheelThread;
+    
+    /**
+     * @return The process-wide wheel, started on first use.
+     */
+    public static synchronized PJLinkTimeoutWheel getInstance() {
+        if (_instance == null) _instance = new PJLinkTimeoutWheel();
+        return _instance;
+    }
+    
+    private PJLinkTimeoutWheel() {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            Timeout sentinel = new Timeout(null, 0);
+            sentinel._next = sentinel;
+            sentinel._previous = sentinel;
+            _buckets[i] = sentinel;
+        }
+        
+        _wheelThread = new Thread(this, "PJLinkTimeoutWheel");
+        _wheelThread.setDaemon(true);
+        _wheelThread.start();
+    }
+    
+    /**
+     * Runs <code>task</code> once <code>delay</code> milliseconds have
+     * passed, unless the returned timeout is cancelled first.
+     * @param task
+     * @param delay
+     * @return Handle used to cancel the timeout.
+     */
+    public synchronized Timeout schedule(Runnable task, long delay) {
+        long ticks = (delay + TICK_DURATION - 1) / TICK_DURATION;
+        if (ticks < 1) ticks = 1;
+        
+        // The idle wheel stopped counting ticks. Resume from now.
+        if (_pending == 0) _lastTick = currentTick();
+        
+        Timeout timeout = new Timeout(task, currentTick() + ticks);
+        
+        Timeout sentinel = _buckets[(int) (timeout._deadlineTick & WHEEL_MASK)];
+        timeout._previous = sentinel._previous;
+        timeout._next = sentinel;
+        sentinel._previous._next = timeout;
+        sentinel._previous = timeout;
+        
+        if (_pending++ == 0) notify();  // Wake the idle wheel thread.
+        
+        return timeout;
+    }
+    
+    /**
+     * @return Number of timeouts waiting to fire.
+     */
+    public synchronized int getPendingCount() {
+        return _pending;
+    }
+    
+    private long currentTick() {
+        return elapsed() / TICK_DURATION;
+    }
+    
+    /**
+     * @return Milliseconds since the wheel started. If the wall clock is
+     *         set back, the start is moved back with it, so deadlines keep
+     *         their place instead of firing late by the size of the step.
+     */
+    private long elapsed() {
+        long elapsed = System.currentTimeMillis() - _startTime;
+        
+        if (elapsed < _lastElapsed) {
+            _startTime -= _lastElapsed - elapsed;
+            elapsed = _lastElapsed;
+        }
+        
+        _lastElapsed = elapsed;
+        return elapsed;
+    }
+    
+    private void unlink(Timeout timeout) {
+        timeout._previous._next = timeout._next;
+        timeout._next._previous = timeout._previous;
+        timeout._next = null;
+        timeout._previous = null;
+        _pending--;
+    }
+    
+    public void run() {
+        while (true) {
+            Timeout expired = null;
+            
+            synchronized (this) {
+                try {
+                    if (_pending == 0) {
+                        // Nothing to time. Park until something is scheduled.
+                        wait();
+                        continue;
+                    }
+                    
+                    long now = elapsed();
+                    long nextTickTime = (_lastTick + 1) * TICK_DURATION;
+                    if (nextTickTime > now) wait(nextTickTime - now);
+                }
+                catch (InterruptedException ex) {
+                    return;
+                }
+                
+                long tick = currentTick();
+                
+                // Collect everything due, catching up on ticks missed while busy.
+                while (_lastTick < tick && _pending > 0) {
+                    _lastTick++;
+                    
+                    Timeout sentinel = _buckets[(int) (_lastTick & WHEEL_MASK)];
+                    Timeout timeout = sentinel._next;
+                    
+                    while (timeout != sentinel) {
+                        Timeout next = timeout._next;
+                        
+                        if (timeout._deadlineTick <= _lastTick) {
+                            unlink(timeout);
+                            timeout._next = expired;
+                            expired = timeout;
+                        }
+                        
+                        timeout = next;
+                    }
+                }
+                
+                if (_pending == 0) _lastTick = tick;
+            }
+            
+            // Run the tasks outside the lock, so they can schedule and cancel.
+            while (expired != null) {
+                Timeout timeout = expired;
+                expired = expired._next;
+                timeout._next = null;
+                
+                try {
+                    timeout._task.run();
+                }
+                catch (RuntimeException ex) {
+                    // An exception would kill the wheel thread,
+                    // which is shared by every projector.
+                    System.out.println("PJLink timeout task failed: " + ex);
+                }
+            }
+        }
+    }
+    
+    /**
+     * A scheduled task.
+     */
+    class Timeout {
+        private Runnable _task;
+        private long _deadlineTick;
+        
+        private Timeout _next;
+        private Timeout _previous;
+        
+        private Timeout(Runnable task, long deadlineTick) {
+            _task = task;
+            _deadlineTick = deadlineTick;
+        }
+        
+        /**
+         * Stops the task from running. Does nothing if it already ran.
+         */
+        public void cancel() {
+            synchronized (PJLinkTimeoutWheel.this) {
+                if (_previous != null) unlink(this);
+            }
+        }
+    }
+}
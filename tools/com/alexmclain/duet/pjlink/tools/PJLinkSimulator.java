@@ -0,0 +1,929 @@
+package com.alexmclain.duet.pjlink.tools;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.alexmclain.duet.pjlink.dr0_1_2.PJLink;
+
+/**
+ * Simulated PJLink projector, served on a local TCP port, for exercising
+ * <code>PJLink</code> and the Duet module without real projectors.
+ * <p>
+ * It speaks Class 1, and Class 2 when set, with or without password
+ * authentication. Powering on and off goes through warming and cooling
+ * for a set time, during which control commands are answered with ERR3,
+ * as a projector does. Responses can be delayed, idle connections are
+ * closed, any command can be made to fail with ERR1 to ERR4 or ERRA,
+ * and connections can be refused as if the projector were unplugged.
+ * A Class 2 simulator can also send status notifications over UDP.
+ * <p>
+ * Every simulator in the process is served by one selector thread and
+ * one timer thread, so hundreds of them can run on loopback addresses
+ * and ports of one machine.
+ * <p>
+ * This is a development tool. It lives in the <code>tools</code> source
+ * tree and isn't part of the Duet module.
+ */
+public class PJLinkSimulator {
+    
+    // Milliseconds a projector waits for a command before it closes the connection.
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+    
+    // Milliseconds between checks for idle connections, the resolution of the idle timeout.
+    private static final long IDLE_CHECK_INTERVAL = 100;
+    
+    // Longest command line kept.
+    private static final int MAX_LINE_LENGTH = 512;
+    
+    private static final byte[] HEX_DIGITS = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+    
+    private static Random _random = new Random();
+    
+    // Ends transitions and delays responses, for every simulator.
+    private static Timer _timer = new Timer(true);
+    
+    // Where the simulator listens.
+    private String _address;
+    private int _port;
+    
+    // Settings.
+    private String _password = "";          // Empty for no authentication.
+    private int _projectorClass = 1;
+    private long _warmingTime = 5000;
+    private long _coolingTime = 5000;
+    private long _latency = 0;              // Milliseconds before each response.
+    private long _idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private boolean _refuseConnections = false;
+    private HashMap _injectedErrors = new HashMap();    // Reply by command code, like "ERR3".
+    private int[] _inputs = {11, 12, 31, 32};
+    private String _name = "PJLink Simulator";
+    
+    // Class 2 status notifications, sent when set.
+    private InetSocketAddress _notificationAddress;
+    private DatagramSocket _notificationSocket;
+    
+    // Projector state.
+    private int _powerState = PJLink.POWER_OFF;
+    private TimerTask _transition;      // Ends warming or cooling.
+    private int _input = 11;
+    private int _avMute = PJLink.MUTE_OFF;
+    private int _lampHours = 0;
+    private String _errorStatus = "000000";
+    
+    private long _commandCount = 0;
+    private long _connectionCount = 0;
+    
+    // Engine thread only.
+    private ServerSocketChannel _server;
+    private HashSet _connections = new HashSet();
+    private boolean _running = false;
+    
+    /**
+     * Simulates a projector on <code>port</code> of the loopback address.
+     * @param port 0 for any free port, see <code>getPort()</code>.
+     */
+    public PJLinkSimulator(int port) {
+        this("127.0.0.1", port);
+    }
+    
+    /**
+     * Simulates a projector on <code>port</code> of a local address, so
+     * that simulators can be told apart by address, as projectors are.
+     * @param address Local address, like <code>127.0.0.2</code>.
+     * @param port 0 for any free port, see <code>getPort()</code>.
+     */
+    public PJLinkSimulator(String address, int port) {
+        _address = address;
+        _port = port;
+    }
+    
+    /**
+     * Starts accepting connections.
+     */
+    public void start() throws IOException {
+        final IOException[] error = new IOException[1];
+        
+        runOnEngine(new Runnable() {
+            public void run() {
+                try {
+                    _running = true;
+                    if (isRefusingConnections() == false) listen();
+                }
+                catch (IOException ex) {
+                    _running = false;
+                    error[0] = ex;
+                }
+            }
+        });
+        
+        if (error[0] != null) throw error[0];
+    }
+    
+    /**
+     * Closes the port and every open connection.
+     */
+    public void stop() {
+        try {
+            runOnEngine(new Runnable() {
+                public void run() {
+                    _running = false;
+                    closeServer();
+                    
+                    Object[] connections = _connections.toArray();
+                    for (int i = 0; i < connections.length; i++) ((Connection) connections[i]).close();
+                }
+            });
+        }
+        catch (IOException ex) {
+            // Not started.
+        }
+        
+        synchronized (this) {
+            if (_transition != null) _transition.cancel();
+            _transition = null;
+            
+            if (_notificationSocket != null) _notificationSocket.close();
+            _notificationSocket = null;
+        }
+    }
+    
+    public String getAddress() {
+        return _address;
+    }
+    
+    /**
+     * @return The port listened on, once started.
+     */
+    public synchronized int getPort() {
+        return _port;
+    }
+    
+    /**
+     * Requires authentication with <code>password</code>, or none if it is empty.
+     * @param password
+     */
+    public synchronized void setPassword(String password) {
+        _password = password;
+    }
+    
+    /**
+     * @param projectorClass 1, or 2 to also answer Class 2 commands.
+     */
+    public synchronized void setProjectorClass(int projectorClass) {
+        _projectorClass = projectorClass;
+    }
+    
+    /**
+     * @param warmingTime Milliseconds from powering on to being on.
+     * @param coolingTime Milliseconds from powering off to being off.
+     */
+    public synchronized void setTransitionTimes(long warmingTime, long coolingTime) {
+        _warmingTime = warmingTime;
+        _coolingTime = coolingTime;
+    }
+    
+    /**
+     * @param latency Milliseconds before each response is sent.
+     */
+    public synchronized void setLatency(long latency) {
+        _latency = latency;
+    }
+    
+    /**
+     * @param idleTimeout Milliseconds a connection may wait for a
+     *        command before it is closed, or 0 to keep it open.
+     */
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        _idleTimeout = idleTimeout;
+    }
+    
+    /**
+     * Closes the port, so connections are refused as if the projector
+     * were unplugged, or opens it again.
+     * @param value
+     */
+    public void setRefuseConnections(final boolean value) throws IOException {
+        synchronized (this) {
+            _refuseConnections = value;
+        }
+        
+        final IOException[] error = new IOException[1];
+        
+        runOnEngine(new Runnable() {
+            public void run() {
+                if (_running == false) return;
+                
+                try {
+                    if (value == true) {
+                        closeServer();
+                    }
+                    else if (_server == null) {
+                        listen();
+                    }
+                }
+                catch (IOException ex) {
+                    error[0] = ex;
+                }
+            }
+        });
+        
+        if (error[0] != null) throw error[0];
+    }
+    
+    public synchronized boolean isRefusingConnections() {
+        return _refuseConnections;
+    }
+    
+    /**
+     * Answers every command with the code <code>command</code> with
+     * <code>reply</code> instead, until cleared.
+     * @param command Command code, like <code>INPT</code>.
+     * @param reply <code>ERR1</code> to <code>ERR4</code>, or <code>ERRA</code>
+     *        to fail authentication and close the connection.
+     */
+    public synchronized void injectError(String command, String reply) {
+        _injectedErrors.put(command, reply);
+    }
+    
+    public synchronized void clearErrors() {
+        _injectedErrors.clear();
+    }
+    
+    /**
+     * @param inputs The <code>PJLink.INPUT_</code> inputs the projector has.
+     */
+    public synchronized void setInputs(int[] inputs) {
+        _inputs = (int[]) inputs.clone();
+    }
+    
+    /**
+     * @param errorStatus Six digits, as answered to <code>ERST ?</code>.
+     */
+    public void setErrorStatus(String errorStatus) {
+        synchronized (this) {
+            _errorStatus = errorStatus;
+        }
+        
+        notifyStatus("ERST", errorStatus);
+    }
+    
+    public synchronized void setLampHours(int lampHours) {
+        _lampHours = lampHours;
+    }
+    
+    /**
+     * Sends Class 2 status notifications to <code>address</code>, or stops
+     * if it is <code>null</code>. They are sent from this simulator's address.
+     * @param address
+     * @param port
+     */
+    public synchronized void setNotificationAddress(String address, int port) throws IOException {
+        if (_notificationSocket != null) _notificationSocket.close();
+        _notificationSocket = null;
+        _notificationAddress = null;
+        
+        if (address == null) return;
+        
+        _notificationAddress = new InetSocketAddress(address, port);
+        _notificationSocket = new DatagramSocket(0, InetAddress.getByName(_address));
+    }
+    
+    public synchronized int getPowerState() {
+        return _powerState;
+    }
+    
+    public synchronized int getInput() {
+        return _input;
+    }
+    
+    /**
+     * @return <code>PJLink.MUTE_</code> state.
+     */
+    public synchronized int getAVMute() {
+        return _avMute;
+    }
+    
+    /**
+     * @return Commands received, including those that failed.
+     */
+    public synchronized long getCommandCount() {
+        return _commandCount;
+    }
+    
+    /**
+     * @return Connections accepted.
+     */
+    public synchronized long getConnectionCount() {
+        return _connectionCount;
+    }
+    
+    /**
+     * Runs <code>task</code> on the engine thread and waits for it.
+     */
+    private void runOnEngine(final Runnable task) throws IOException {
+        final boolean[] done = new boolean[1];
+        
+        Engine.getInstance().execute(new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                }
+                finally {
+                    synchronized (done) {
+                        done[0] = true;
+                        done.notifyAll();
+                    }
+                }
+            }
+        });
+        
+        synchronized (done) {
+            try {
+                while (done[0] == false) done.wait();
+            }
+            catch (InterruptedException ex) {
+                // Give up waiting.
+            }
+        }
+    }
+    
+    /**
+     * Opens the port. Engine thread only.
+     */
+    private void listen() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(_address, getPort()), 128);
+        server.configureBlocking(false);
+        
+        synchronized (this) {
+            _port = server.socket().getLocalPort();
+        }
+        
+        _server = server;
+        Engine.getInstance().register(server, this);
+    }
+    
+    /**
+     * Engine thread only.
+     */
+    private void closeServer() {
+        if (_server == null) return;
+        
+        try {
+            _server.close();
+        }
+        catch (IOException ex) {
+            // Don't care.  Socket is getting destroyed.
+        }
+        
+        _server = null;
+    }
+    
+    /**
+     * @return The greeting for a new connection, and the random number
+     *         the connection's digests are computed from, if any.
+     */
+    private synchronized String[] greeting() {
+        _connectionCount++;
+        
+        if (_password.length() == 0) return new String[] {"PJLINK 0", null};
+        
+        String key = Integer.toHexString(_random.nextInt() | 0x10000000);
+        return new String[] {"PJLINK 1 " + key, key};
+    }
+    
+    /**
+     * @return <code>digest</code> is the right one for <code>key</code>.
+     */
+    private synchronized boolean authenticate(String key, String digest) {
+        try {
+            byte[] hash = MessageDigest.getInstance("MD5").digest((key + _password).getBytes("ASCII"));
+            
+            StringBuffer expected = new StringBuffer(hash.length * 2);
+            for (int i = 0; i < hash.length; i++) {
+                expected.append((char) HEX_DIGITS[(hash[i] >> 4) & 0x0F]);
+                expected.append((char) HEX_DIGITS[hash[i] & 0x0F]);
+            }
+            
+            return expected.toString().equals(digest);
+        }
+        catch (NoSuchAlgorithmException ex) {
+            return false;
+        }
+        catch (IOException ex) {
+            return false;
+        }
+    }
+    
+    /**
+     * Carries out a command.
+     * @param line Command without its terminator, like <code>%1POWR 1</code>.
+     * @return The response without its terminator, or <code>null</code>
+     *         to fail authentication.
+     */
+    private String respond(String line) {
+        String notifyCommand = null;
+        String notifyValue = null;
+        String reply;
+        
+        if (line.length() < 7 || line.charAt(0) != '%' || line.charAt(6) != ' ') {
+            synchronized (this) {
+                _commandCount++;
+            }
+            
+            return (line.length() >= 6) ? line.substring(0, 6) + "=ERR1" : "%1" + line + "=ERR1";
+        }
+        
+        char commandClass = line.charAt(1);
+        String command = line.substring(2, 6);
+        String parameter = line.substring(7);
+        
+        synchronized (this) {
+            _commandCount++;
+            
+            String injected = (String) _injectedErrors.get(command);
+            
+            if (injected != null) {
+                if (injected.equals("ERRA") == true) return null;
+                reply = injected;
+            }
+            else if (commandClass != '1' && (commandClass != '2' || _projectorClass < 2)) {
+                reply = "ERR1";
+            }
+            else if (command.equals("POWR") == true) {
+                reply = power(parameter);
+            }
+            else if (command.equals("INPT") == true) {
+                reply = input(parameter);
+                if (reply.equals("OK") == true) {
+                    notifyCommand = "INPT";
+                    notifyValue = String.valueOf(_input);
+                }
+            }
+            else if (command.equals("AVMT") == true) {
+                reply = avMute(parameter);
+                if (reply.equals("OK") == true) {
+                    notifyCommand = "AVMT";
+                    notifyValue = String.valueOf(_avMute);
+                }
+            }
+            else if (parameter.equals("?") == false) {
+                reply = "ERR1";
+            }
+            else if (command.equals("ERST") == true) {
+                reply = _errorStatus;
+            }
+            else if (command.equals("LAMP") == true) {
+                reply = _lampHours + " " + ((_powerState == PJLink.POWER_ON) ? "1" : "0");
+            }
+            else if (command.equals("INST") == true) {
+                StringBuffer inputs = new StringBuffer();
+                for (int i = 0; i < _inputs.length; i++) {
+                    if (i > 0) inputs.append(' ');
+                    inputs.append(_inputs[i]);
+                }
+                reply = inputs.toString();
+            }
+            else if (command.equals("NAME") == true) {
+                reply = _name;
+            }
+            else if (command.equals("INF1") == true) {
+                reply = "PJLink";
+            }
+            else if (command.equals("INF2") == true) {
+                reply = "Simulator";
+            }
+            else if (command.equals("INFO") == true) {
+                reply = "";
+            }
+            else if (command.equals("CLSS") == true) {
+                reply = String.valueOf(_projectorClass);
+            }
+            else {
+                reply = "ERR1";
+            }
+        }
+        
+        if (notifyCommand != null) notifyStatus(notifyCommand, notifyValue);
+        
+        return "%" + commandClass + command + "=" + reply;
+    }
+    
+    private String power(String parameter) {
+        if (parameter.equals("?") == true) return String.valueOf(_powerState);
+        
+        if (parameter.equals("1") == true) {
+            if (_powerState == PJLink.POWER_ON) return "OK";
+            if (_powerState != PJLink.POWER_OFF) return "ERR3";
+            
+            startTransition(PJLink.POWER_WARMING, PJLink.POWER_ON, _warmingTime);
+            return "OK";
+        }
+        
+        if (parameter.equals("0") == true) {
+            if (_powerState == PJLink.POWER_OFF) return "OK";
+            if (_powerState != PJLink.POWER_ON) return "ERR3";
+            
+            startTransition(PJLink.POWER_COOLING, PJLink.POWER_OFF, _coolingTime);
+            return "OK";
+        }
+        
+        return "ERR2";
+    }
+    
+    private String input(String parameter) {
+        if (_powerState != PJLink.POWER_ON) return "ERR3";
+        if (parameter.equals("?") == true) return String.valueOf(_input);
+        
+        for (int i = 0; i < _inputs.length; i++) {
+            if (String.valueOf(_inputs[i]).equals(parameter) == true) {
+                _input = _inputs[i];
+                return "OK";
+            }
+        }
+        
+        return "ERR2";
+    }
+    
+    private String avMute(String parameter) {
+        if (_powerState != PJLink.POWER_ON) return "ERR3";
+        if (parameter.equals("?") == true) return String.valueOf(_avMute);
+        
+        boolean video = (_avMute == PJLink.MUTE_VIDEO_ONLY || _avMute == PJLink.MUTE_AUDIO_VIDEO);
+        boolean audio = (_avMute == PJLink.MUTE_AUDIO_ONLY || _avMute == PJLink.MUTE_AUDIO_VIDEO);
+        
+        if (parameter.equals("10") == true)         video = false;
+        else if (parameter.equals("11") == true)    video = true;
+        else if (parameter.equals("20") == true)    audio = false;
+        else if (parameter.equals("21") == true)    audio = true;
+        else if (parameter.equals("30") == true)    { video = false; audio = false; }
+        else if (parameter.equals("31") == true)    { video = true; audio = true; }
+        else return "ERR2";
+        
+        if (video == true && audio == true)         _avMute = PJLink.MUTE_AUDIO_VIDEO;
+        else if (video == true)                     _avMute = PJLink.MUTE_VIDEO_ONLY;
+        else if (audio == true)                     _avMute = PJLink.MUTE_AUDIO_ONLY;
+        else                                        _avMute = PJLink.MUTE_OFF;
+        
+        return "OK";
+    }
+    
+    /**
+     * Moves to <code>transitionState</code>, and to <code>endState</code> after <code>duration</code>.
+     */
+    private void startTransition(int transitionState, final int endState, long duration) {
+        _powerState = transitionState;
+        if (_transition != null) _transition.cancel();
+        
+        _transition = new TimerTask() {
+            public void run() {
+                synchronized (PJLinkSimulator.this) {
+                    _powerState = endState;
+                    _transition = null;
+                }
+                
+                notifyStatus("POWR", String.valueOf(endState));
+            }
+        };
+        
+        _timer.schedule(_transition, Math.max(duration, 1));
+    }
+    
+    /**
+     * Sends a Class 2 status notification, if they are enabled.
+     */
+    private void notifyStatus(String command, String value) {
+        DatagramSocket socket;
+        InetSocketAddress address;
+        
+        synchronized (this) {
+            if (_projectorClass < 2 || _notificationSocket == null) return;
+            
+            socket = _notificationSocket;
+            address = _notificationAddress;
+        }
+        
+        byte[] data = ("%2" + command + "=" + value + "\r").getBytes();
+        
+        try {
+            socket.send(new DatagramPacket(data, data.length, address));
+        }
+        catch (IOException ex) {
+            // Notifications are best effort, as UDP is.
+        }
+    }
+    
+    /**
+     * A connection from a controller. Engine thread only.
+     */
+    private class Connection {
+        private Engine _engine;
+        private SocketChannel _channel;
+        private SelectionKey _key;
+        
+        private ByteBuffer _readBuffer = ByteBuffer.allocate(256);
+        private ByteBuffer _writeBuffer = ByteBuffer.allocate(256);   // Kept ready for put().
+        private StringBuffer _line = new StringBuffer();
+        
+        private String _authKey;    // Random number of the greeting, null without authentication.
+        private long _lastActivity = System.currentTimeMillis();
+        private boolean _closed = false;
+        
+        public Connection(SocketChannel channel) throws IOException {
+            _engine = Engine.getInstance();
+            _channel = channel;
+            _channel.configureBlocking(false);
+            _channel.socket().setTcpNoDelay(true);
+            _key = _engine.register(channel, this);
+            _connections.add(this);
+            
+            String[] greeting = greeting();
+            _authKey = greeting[1];
+            
+            write(greeting[0]);
+        }
+        
+        /**
+         * @return The connection has waited longer than the idle timeout for a command.
+         */
+        public boolean isIdle(long now) {
+            long idleTimeout;
+            
+            synchronized (PJLinkSimulator.this) {
+                idleTimeout = _idleTimeout;
+            }
+            
+            return idleTimeout > 0 && now - _lastActivity >= idleTimeout;
+        }
+        
+        public void read() throws IOException {
+            _readBuffer.clear();
+            
+            if (_channel.read(_readBuffer) < 0) {
+                close();
+                return;
+            }
+            
+            _readBuffer.flip();
+            
+            while (_readBuffer.hasRemaining() == true && _closed == false) {
+                char c = (char) (_readBuffer.get() & 0xFF);
+                
+                if (c != '\r' && c != '\n') {
+                    if (_line.length() < MAX_LINE_LENGTH) _line.append(c);
+                }
+                else if (_line.length() > 0) {
+                    String line = _line.toString();
+                    _line.setLength(0);
+                    lineReceived(line);
+                }
+            }
+        }
+        
+        private void lineReceived(String line) {
+            _lastActivity = System.currentTimeMillis();
+            
+            if (_authKey != null) {
+                if (line.length() < 32 || authenticate(_authKey, line.substring(0, 32)) == false) {
+                    authenticationFailed();
+                    return;
+                }
+                
+                line = line.substring(32);
+            }
+            
+            final String response = respond(line);
+            
+            if (response == null) {
+                authenticationFailed();
+                return;
+            }
+            
+            long latency;
+            
+            synchronized (PJLinkSimulator.this) {
+                latency = _latency;
+            }
+            
+            if (latency < 1) {
+                write(response);
+                return;
+            }
+            
+            _timer.schedule(new TimerTask() {
+                public void run() {
+                    _engine.execute(new Runnable() {
+                        public void run() {
+                            write(response);
+                        }
+                    });
+                }
+            }, latency);
+        }
+        
+        private void authenticationFailed() {
+            write("PJLINK ERRA");
+            close();
+        }
+        
+        private void write(String text) {
+            if (_closed == true) return;
+            
+            byte[] data = (text + "\r").getBytes();
+            
+            if (_writeBuffer.remaining() < data.length) {
+                ByteBuffer buffer = ByteBuffer.allocate(_writeBuffer.position() + data.length);
+                _writeBuffer.flip();
+                buffer.put(_writeBuffer);
+                _writeBuffer = buffer;
+            }
+            
+            _writeBuffer.put(data);
+            
+            try {
+                flush();
+            }
+            catch (IOException ex) {
+                close();
+            }
+        }
+        
+        public void flush() throws IOException {
+            _writeBuffer.flip();
+            _channel.write(_writeBuffer);
+            _writeBuffer.compact();
+            
+            if (_key.isValid() == false) return;
+            _key.interestOps((_writeBuffer.position() > 0) ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+        
+        public void close() {
+            if (_closed == true) return;
+            
+            // Send what is left, like an ERRA, before closing.
+            try {
+                _writeBuffer.flip();
+                _channel.write(_writeBuffer);
+            }
+            catch (IOException ex) {
+                // Don't care.  Socket is getting destroyed.
+            }
+            
+            _closed = true;
+            _connections.remove(this);
+            _engine.connectionClosed(this);
+            
+            _key.cancel();
+            
+            try {
+                _channel.close();
+            }
+            catch (IOException ex) {
+                // Don't care.  Socket is getting destroyed.
+            }
+        }
+    }
+    
+    /**
+     * The selector thread shared by every simulator in the process.
+     */
+    private static class Engine implements Runnable {
+        private static Engine _instance;
+        
+        private Selector _selector;
+        private ArrayList _tasks = new ArrayList();
+        
+        // Connections of every simulator, checked for idleness.
+        private HashSet _connections = new HashSet();
+        private long _lastIdleCheck = 0;
+        
+        public static synchronized Engine getInstance() throws IOException {
+            if (_instance == null) _instance = new Engine();
+            return _instance;
+        }
+        
+        private Engine() throws IOException {
+            _selector = Selector.open();
+            
+            Thread thread = new Thread(this, "PJLinkSimulator");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        public void execute(Runnable task) {
+            synchronized (_tasks) {
+                _tasks.add(task);
+            }
+            
+            _selector.wakeup();
+        }
+        
+        /**
+         * Engine thread only.
+         */
+        public SelectionKey register(ServerSocketChannel server, PJLinkSimulator simulator) throws IOException {
+            return server.register(_selector, SelectionKey.OP_ACCEPT, simulator);
+        }
+        
+        /**
+         * Engine thread only.
+         */
+        public SelectionKey register(SocketChannel channel, Connection connection) throws IOException {
+            _connections.add(connection);
+            return channel.register(_selector, SelectionKey.OP_READ, connection);
+        }
+        
+        /**
+         * Engine thread only.
+         */
+        public void connectionClosed(Connection connection) {
+            _connections.remove(connection);
+        }
+        
+        public void run() {
+            while (true) {
+                try {
+                    _selector.select(IDLE_CHECK_INTERVAL);
+                    
+                    Iterator i = _selector.selectedKeys().iterator();
+                    while (i.hasNext()) {
+                        SelectionKey key = (SelectionKey) i.next();
+                        i.remove();
+                        
+                        if (key.isValid() == false) continue;
+                        
+                        if (key.isAcceptable() == true) {
+                            SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+                            if (channel != null) ((PJLinkSimulator) key.attachment()).new Connection(channel);
+                            continue;
+                        }
+                        
+                        Connection connection = (Connection) key.attachment();
+                        
+                        try {
+                            if (key.isWritable() == true) connection.flush();
+                            if (key.isValid() == true && key.isReadable() == true) connection.read();
+                        }
+                        catch (IOException ex) {
+                            connection.close();
+                        }
+                    }
+                    
+                    runTasks();
+                    closeIdleConnections();
+                }
+                catch (Exception ex) {
+                    // Keep the engine running for the other simulators.
+                    System.out.println("PJLink simulator error: " + ex);
+                }
+            }
+        }
+        
+        private void closeIdleConnections() {
+            long now = System.currentTimeMillis();
+            if (now - _lastIdleCheck < IDLE_CHECK_INTERVAL && now >= _lastIdleCheck) return;
+            _lastIdleCheck = now;
+            
+            Object[] connections = _connections.toArray();
+            
+            for (int i = 0; i < connections.length; i++) {
+                Connection connection = (Connection) connections[i];
+                if (connection.isIdle(now) == true) connection.close();
+            }
+        }
+        
+        private void runTasks() {
+            Object[] tasks;
+            
+            synchronized (_tasks) {
+                if (_tasks.isEmpty() == true) return;
+                tasks = _tasks.toArray();
+                _tasks.clear();
+            }
+            
+            for (int i = 0; i < tasks.length; i++) {
+                ((Runnable) tasks[i]).run();
+            }
+        }
+    }
+}